@@ -0,0 +1,100 @@
+import java.io.*;
+
+import org.kxml2.io.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Parses a large and a small generated document with different source
+ * buffer sizes and prints the number of read calls on the underlying
+ * stream and the throughput for each. */
+
+public class BufferSizeBenchmark {
+
+	/** Counts the read calls that reach the stream */
+
+	static class CountingInputStream extends ByteArrayInputStream {
+
+		int reads;
+
+		CountingInputStream(byte[] buf) {
+			super(buf);
+		}
+
+		public synchronized int read() {
+			reads++;
+			return super.read();
+		}
+
+		public synchronized int read(byte[] b, int off, int len) {
+			reads++;
+			return super.read(b, off, len);
+		}
+	}
+
+	static byte[] document(int entries) throws IOException {
+		StringBuffer buf = new StringBuffer();
+		buf.append("<?xml version='1.0' encoding='UTF-8'?>\n<feed>\n");
+		for (int i = 0; i < entries; i++) {
+			buf.append("  <entry id='" + i + "'>\n");
+			buf.append("    <title>Entry number " + i + "</title>\n");
+			buf.append(
+				"    <content>Lorem ipsum dolor sit amet, consectetur "
+					+ "adipiscing elit, sed do eiusmod tempor incididunt ut "
+					+ "labore et dolore magna aliqua &amp; more.</content>\n");
+			buf.append("  </entry>\n");
+		}
+		buf.append("</feed>\n");
+		return buf.toString().getBytes("UTF-8");
+	}
+
+	static void run(String label, byte[] doc, int size, int maxSize, int rounds)
+		throws IOException, XmlPullParserException {
+
+		int reads = 0;
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < rounds; i++) {
+			KXmlParser parser = new KXmlParser(size, maxSize);
+			CountingInputStream in = new CountingInputStream(doc);
+
+			parser.setInput(in, null);
+			while (parser.next() != XmlPullParser.END_DOCUMENT) {
+				if (parser.getEventType() == XmlPullParser.TEXT)
+					parser.getText();
+			}
+			reads = in.reads;
+		}
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+
+		System.out.println(
+			label
+				+ ": "
+				+ reads
+				+ " reads, "
+				+ (time * 1000 / rounds)
+				+ " us/doc, "
+				+ ((long) doc.length * rounds / 1000 / time)
+				+ " MB/s");
+	}
+
+	public static void main(String[] args)
+		throws IOException, XmlPullParserException {
+
+		byte[] large = document(50000);
+		byte[] small = document(1);
+
+		int[] sizes = { 128, 1024, 8192, 65536, 262144 };
+
+		System.out.println("large document, " + large.length + " bytes");
+		for (int i = 0; i < sizes.length; i++)
+			run("  fixed " + sizes[i], large, sizes[i], sizes[i], 20);
+		run("  adaptive 1024..65536", large, 1024, 65536, 20);
+		run("  adaptive 1024..262144", large, 1024, 262144, 20);
+
+		System.out.println("small document, " + small.length + " bytes");
+		for (int i = 0; i < sizes.length; i++)
+			run("  fixed " + sizes[i], small, sizes[i], sizes[i], 20000);
+		run("  adaptive 1024..65536", small, 1024, 65536, 20000);
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.*;
+
+import org.kxml2.io.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Serializes a generated document with different output buffer sizes
+ * and prints the number of write calls on the underlying writer and 
+ * the throughput for each. A buffer size of 1 passes every char to the
+ * writer, as the serializer did before it had an output buffer. */
+
+public class SerializerBenchmark {
+
+	/** Counts the write calls that reach the writer */
+
+	static class CountingWriter extends Writer {
+
+		int writes;
+		long chars;
+
+		public void write(int c) {
+			writes++;
+			chars++;
+		}
+
+		public void write(char[] buf, int off, int len) {
+			writes++;
+			chars += len;
+		}
+
+		public void write(String s, int off, int len) {
+			writes++;
+			chars += len;
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+
+	static void document(XmlSerializer serializer, int entries)
+		throws IOException {
+		serializer.startDocument("UTF-8", null);
+		serializer.startTag(null, "feed");
+		for (int i = 0; i < entries; i++) {
+			serializer.startTag(null, "entry");
+			serializer.attribute(null, "id", String.valueOf(i));
+			serializer.startTag(null, "title");
+			serializer.text("Entry number " + i);
+			serializer.endTag(null, "title");
+			serializer.startTag(null, "content");
+			serializer.text(
+				"Lorem ipsum dolor sit amet, consectetur adipiscing elit, "
+					+ "sed do eiusmod tempor incididunt ut labore et dolore "
+					+ "magna aliqua & more.");
+			serializer.endTag(null, "content");
+			serializer.endTag(null, "entry");
+		}
+		serializer.endTag(null, "feed");
+		serializer.endDocument();
+	}
+
+	static void run(String label, int size, boolean stream, int rounds)
+		throws IOException {
+
+		int writes = 0;
+		long chars = 0;
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < rounds; i++) {
+			KXmlSerializer serializer = new KXmlSerializer(size);
+			CountingWriter writer = new CountingWriter();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			if (stream)
+				serializer.setOutput(out, "UTF-8");
+			else
+				serializer.setOutput(writer);
+			document(serializer, 20000);
+			writes = writer.writes;
+			chars = stream ? out.size() : writer.chars;
+		}
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+
+		System.out.println(
+			label
+				+ ": "
+				+ (stream ? "" : writes + " writes, ")
+				+ (time / rounds)
+				+ " ms/doc, "
+				+ (chars * rounds / 1000 / time)
+				+ " MB/s");
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		int[] sizes = { 1, 128, 1024, 8192, 65536 };
+
+		System.out.println("writer");
+		for (int i = 0; i < sizes.length; i++)
+			run("  buffer " + sizes[i], sizes[i], false, 10);
+
+		System.out.println("UTF-8 stream");
+		for (int i = 0; i < sizes.length; i++)
+			run("  buffer " + sizes[i], sizes[i], true, 10);
+	}
+}
@@ -0,0 +1,244 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.xmlpull.v1.*;
+
+/** 
+ * A KXmlParser that also reads from NIO sources. It is kept apart from
+ * KXmlParser so that the latter still runs on platforms without NIO.
+ * <p>
+ * Buffers backed by an accessible array are parsed in place. The 
+ * contents of other buffers are copied in chunks into the buffers of
+ * the parser, as for any other input. The encoding of byte buffers is
+ * detected as for setInput(InputStream, String).
+ * <p>
+ * Files are memory mapped in windows of a configurable size. The 
+ * windows are mapped one after the other as the parser advances, so
+ * files larger than the address space can be parsed. In UTF-8, 
+ * ISO-8859-1 and US-ASCII, the parser decodes the mapped bytes itself 
+ * and getEventOffset() reports the byte offset of each event in the 
+ * file. */
+
+public class KXmlNioParser extends KXmlParser {
+
+    private int windowSize;
+
+    /** 
+     * Creates a parser with the default buffer sizes of KXmlParser 
+     * mapping files in windows of 64 MB. */
+
+    public KXmlNioParser() {
+        this(1024, 65536, 1 << 26);
+    }
+
+    /** 
+     * Creates a parser with the given buffer sizes, see 
+     * KXmlParser(int, int), mapping files in windows of windowSize bytes. */
+
+    public KXmlNioParser(int bufferSize, int maxBufferSize, int windowSize) {
+        super(bufferSize, maxBufferSize);
+        if (windowSize < 1)
+            throw new IllegalArgumentException();
+        this.windowSize = windowSize;
+    }
+
+    /** 
+     * Sets the input to the contents of the given file channel, from its
+     * current position to the end. Offsets returned by getEventOffset()
+     * are relative to that position. If encoding is null, it is detected
+     * as for setInput(InputStream, String). The channel is not closed by
+     * the parser. */
+
+    public void setInput(FileChannel channel, String encoding)
+        throws XmlPullParserException {
+        try {
+            setInput(new MappedInput(channel, windowSize), encoding);
+        }
+        catch (IOException e) {
+            throw new XmlPullParserException(e.toString(), this, e);
+        }
+    }
+
+    /** 
+     * Sets the input to size bytes of the given file channel, starting
+     * at position, which must be the start of an event. Offsets 
+     * returned by getEventOffset() are relative to position. The 
+     * channel and its position are not changed by the parser. */
+
+    public void setInput(
+        FileChannel channel,
+        long position,
+        long size,
+        String encoding)
+        throws XmlPullParserException {
+        try {
+            setInput(
+                new MappedInput(channel, windowSize, position, position + size),
+                encoding);
+        }
+        catch (IOException e) {
+            throw new XmlPullParserException(e.toString(), this, e);
+        }
+    }
+
+    /** 
+     * Sets the input to the remaining bytes of the given buffer. If 
+     * encoding is null, it is detected as for setInput(InputStream, 
+     * String). The position of the buffer is not changed, and its 
+     * contents must not change while it is parsed. */
+
+    public void setInput(ByteBuffer buffer, String encoding)
+        throws XmlPullParserException {
+
+        if (buffer.hasArray())
+            setInput(
+                buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                buffer.remaining(),
+                encoding);
+        else
+            setInput(new BufferInput(buffer.duplicate()), encoding);
+    }
+
+    /** 
+     * Sets the input to the remaining chars of the given buffer. The 
+     * position of the buffer is not changed, and its contents must not
+     * change while it is parsed. */
+
+    public void setInput(CharBuffer buffer) throws XmlPullParserException {
+        if (buffer.hasArray())
+            setInput(
+                buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+        else
+            setInput(new BufferReader(buffer.duplicate()));
+    }
+
+    /** Reads the remaining bytes of a buffer */
+
+    static class BufferInput extends InputStream {
+
+        ByteBuffer buffer;
+
+        BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /** Returns whether buffer has bytes left to read */
+
+        boolean more() throws IOException {
+            return buffer.hasRemaining();
+        }
+
+        public int read() throws IOException {
+            return more() ? buffer.get() & 0x0ff : -1;
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!more())
+                return -1;
+            if (len > buffer.remaining())
+                len = buffer.remaining();
+            buffer.get(buf, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buffer == null ? 0 : buffer.remaining();
+        }
+    }
+
+    /** Reads a file channel through a sequence of mapped windows */
+
+    static class MappedInput extends BufferInput {
+
+        private FileChannel channel;
+        private long position;
+        private long size;
+        private int windowSize;
+
+        MappedInput(FileChannel channel, int windowSize) throws IOException {
+            this(channel, windowSize, channel.position(), channel.size());
+        }
+
+        /** Reads the bytes of the channel from position up to end */
+
+        MappedInput(FileChannel channel, int windowSize, long position, long end)
+            throws IOException {
+            super(null);
+            this.channel = channel;
+            this.windowSize = windowSize;
+            this.position = position;
+            size = Math.min(end, channel.size());
+        }
+
+        /** Maps the next window if the current one is exhausted */
+
+        boolean more() throws IOException {
+            if (buffer != null && buffer.hasRemaining())
+                return true;
+            if (position >= size)
+                return false;
+
+            long len = Math.min(windowSize, size - position);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+            position += len;
+            return true;
+        }
+
+        public String toString() {
+            return "mapped file at " + (position - available());
+        }
+    }
+
+    /** Reads the remaining chars of a buffer */
+
+    static class BufferReader extends Reader {
+
+        private CharBuffer buffer;
+
+        BufferReader(CharBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read(char[] buf, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            if (len > buffer.remaining())
+                len = buffer.remaining();
+            buffer.get(buf, off, len);
+            return len;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** 
+ * A KXmlSerializer that also writes to NIO targets. It is kept apart 
+ * from KXmlSerializer so that the latter still runs on platforms 
+ * without NIO.
+ * <p>
+ * In UTF-8, ISO-8859-1 and US-ASCII, the encoded output is copied from
+ * the byte buffer of the serializer to the target when the buffer is
+ * flushed; other encodings go through an OutputStreamWriter, as for 
+ * setOutput(OutputStream, String). */
+
+public class KXmlNioSerializer extends KXmlSerializer {
+
+    /** Creates a serializer with the default buffer size of KXmlSerializer. */
+
+    public KXmlNioSerializer() {
+    }
+
+    /** Creates a serializer with the given buffer size, see KXmlSerializer(int). */
+
+    public KXmlNioSerializer(int bufferSize) {
+        super(bufferSize);
+    }
+
+    /** 
+     * Sets the output to the given buffer, starting at its position. 
+     * The position is advanced as output is flushed; an IOException is
+     * thrown if the buffer is full. */
+
+    public void setOutput(ByteBuffer buffer, String encoding)
+        throws IOException {
+        setOutput(new BufferOutput(buffer), encoding);
+    }
+
+    /** 
+     * Sets the output to the given channel, which must be in blocking 
+     * mode. The channel is not closed by the serializer. */
+
+    public void setOutput(WritableByteChannel channel, String encoding)
+        throws IOException {
+        setOutput(new ChannelOutput(channel), encoding);
+    }
+
+    /** Writes to a byte buffer */
+
+    static class BufferOutput extends OutputStream {
+
+        private ByteBuffer buffer;
+
+        BufferOutput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b }, 0, 1);
+        }
+
+        public void write(byte[] buf, int off, int len) throws IOException {
+            if (len > buffer.remaining())
+                throw new IOException("output buffer full");
+            buffer.put(buf, off, len);
+        }
+    }
+
+    /** Writes to a channel */
+
+    static class ChannelOutput extends OutputStream {
+
+        private WritableByteChannel channel;
+
+        ChannelOutput(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b }, 0, 1);
+        }
+
+        public void write(byte[] buf, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, off, len);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+}
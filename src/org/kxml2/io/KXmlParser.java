@@ -32,12 +32,48 @@ import org.xmlpull.v1.*;
 
 public class KXmlParser implements XmlPullParser {
 
+    /** 
+     * Returned by next() and nextToken() for feed input if the next 
+     * event is not complete yet, see setFeedInput() */
+
+    public static final int INCOMPLETE = 32;
+
     private Object location;
 	static final private String UNEXPECTED_EOF = "Unexpected EOF";
     static final private String ILLEGAL_TYPE = "Wrong event type";
     static final private int LEGACY = 999;
     static final private int XML_DECL = 998;
 
+    // encodings decoded by the parser itself, without a Reader, and
+    // encoded by KXmlSerializer without a Writer
+
+    static final int UTF_8 = 1;
+    static final int ISO_8859_1 = 2;
+    static final int US_ASCII = 3;
+
+    /** start tags with more attributes are looked up in attributeHash */
+
+    static final private int ATTRIBUTE_HASH_THRESHOLD = 8;
+
+    // base64 digit values, -1 for other chars, see decodeBinary()
+
+    static final private byte[] BASE64 = new byte[128];
+
+    // powers of ten that are exact doubles, see parseDouble()
+
+    static final private double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    static {
+        String digits =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < 128; i++)
+            BASE64[i] = -1;
+        for (int i = 0; i < 64; i++)
+            BASE64[digits.charAt(i)] = (byte) i;
+    }
+
     // general
 
     private String version;
@@ -45,23 +81,124 @@ public class KXmlParser implements XmlPullParser {
 
     private boolean processNsp;
     private boolean relaxed;
+    /** Attribute values are copied raw and resolved on first access */
+    private boolean lazyAttributes;
+    /** skipSubTree scans for the end tag instead of parsing, see skipRaw */
+    private boolean rawSkip;
+    /** 
+     * If not 0, text and CDATA events end after about this many chars 
+     * of input, at chunkLimit; the rest follows in further events. 
+     * cdataOpen is set if an event ended inside a CDATA section. */
+    private int textChunkSize;
+    private long chunkLimit;
+    private boolean cdataOpen;
+    /** 
+     * State of decodeBinary() between text chunks: the bits and number 
+     * of chars of an incomplete group and the number of '=' chars seen */
+    private int binBits;
+    private int binChars;
+    private int binPad;
+    /** start and length of an attribute value, see attributeChars() */
+    private int[] numberSpan = new int[2];
     private Hashtable entityMap;
     private int depth;
     private String[] elementStack = new String[16];
     private String[] nspStack = new String[8];
     private int[] nspCounts = new int[4];
 
+    /** 
+     * The innermost declaration of each prefix in scope, as an index into
+     * nspStack or -1. Prefixes are the interned names from readName and
+     * are kept in an open hash table; defaultBinding holds the binding of
+     * the null prefix. nspPrev[k] is the binding that declaration k in 
+     * nspStack shadows, so that unbind() can restore it at the end tag. */
+    private String[] prefixTable = new String[16];
+    private int[] prefixBinding = new int[16];
+    private int prefixCount;
+    private int defaultBinding = -1;
+    private int[] nspPrev = new int[4];
+
+    /** Canonical element and attribute names, see readName() */
+    private SymbolTable symbols = new SymbolTable();
+    /** Position of the first colon of the last name read into txtBuf, 
+        or -1 */
+    private int nameColon;
+    /** Direct mapped cache of qualified name, prefix and local name 
+        triples, see split() */
+    private String[] splitCache = new String[3 * 256];
+    private String splitPrefix;
+
     // source
 
     private Reader reader;
     private String encoding;
     private char[] srcBuf;
 
+    /** 
+     * Initial and maximum size of srcBuf. While reads fill the whole 
+     * buffer (byteBuf for direct decoding), it is doubled up to the 
+     * maximum, see fill() */
+    private int bufferSize;
+    private int maxBufferSize;
+    private boolean fullRead;
+
     private int srcPos;
     private int srcCount;
 
+    /** 
+     * Byte input for the encodings decoded directly into srcBuf 
+     * (see byteEncoding), bypassing InputStreamReader */
+
+    private InputStream in;
+    private int byteEncoding;
+    private byte[] byteBuf;
+    private int bytePos;
+    private int byteCount;
+
+    /** 
+     * Set while srcBuf (chars) or byteBuf (bytes) is an array of the 
+     * caller that is parsed in place and never written to. The own 
+     * buffer is kept in spareChars or spareBytes meanwhile, see 
+     * releaseInput() */
+
+    private boolean borrowed;
+    private char[] spareChars;
+    private byte[] spareBytes;
+
+    /** 
+     * Non-blocking input, see setFeedInput(). Events are only parsed 
+     * once they are complete in srcBuf; feedScan is the number of chars
+     * after srcPos already scanned for the end of the next event, and 
+     * pendingType the lowest type of an unfinished next() call. */
+
+    private FeedInput feed;
+    private String feedEncoding;
+    private int feedScan;
+    private int pendingType;
+
+    /** 
+     * Line and column are computed lazily from the chars consumed 
+     * from srcBuf, up to lineMark; see updatePosition() */
+
     private int line;
     private int column;
+    private int lineMark;
+    private boolean prevCR;
+
+    /** 
+     * Input offsets, see getEventOffset(): the number of chars dropped 
+     * from the front of srcBuf, the additional UTF-8 bytes of the chars 
+     * up to lineMark, and the bytes skipped before the first char (BOM).
+     * The extra bytes at the start of the current event are stored in 
+     * eventExtra once updatePosition() has passed it, -1 before. */
+
+    private long consumed;
+    private long extraBytes;
+    private int offsetBase;
+    /** offset of the input in a larger document, see setInputOffset() */
+    private long inputBase;
+    private long eventStart;
+    private long eventExtra;
 
     // txtbuffer
 
@@ -81,23 +218,109 @@ public class KXmlParser implements XmlPullParser {
     private boolean degenerated;
     private int attributeCount;
     private String[] attributes = new String[16];
+    /** start and length of each attribute value in txtBuf; the value
+        string in attributes is only created on demand. A negative
+        length (~len) marks a raw value that still needs to be 
+        resolved, see lazyAttributes */
+    private int[] attributeSpans = new int[8];
+    /** 
+     * Open addressing table of attribute indices + 1 by local name 
+     * hash, built on the first lookup in a start tag with many 
+     * attributes; see getAttributeIndex() */
+    private int[] attributeHash = new int[32];
+    private boolean attributeHashed;
 //    private int stackMismatch = 0;
     private String error;
 
-    /** 
-     * A separate peek buffer seems simpler than managing
-     * wrap around in the first level read buffer */
-
-    private int[] peek = new int[2];
-    private int peekCount;
-    private boolean wasCR;
-
     private boolean unresolved;
     private boolean token;
 
+    /** 
+     * Creates a parser that reads its input in chunks of 1024 chars,
+     * growing up to 65536 chars for large documents. */
+
     public KXmlParser() {
-        srcBuf =
-            new char[Runtime.getRuntime().freeMemory() >= 1048576 ? 8192 : 128];
+        this(1024, 65536);
+    }
+
+    /** 
+     * Creates a parser that reads its input in chunks of the given 
+     * number of chars. */
+
+    public KXmlParser(int bufferSize) {
+        this(bufferSize, bufferSize);
+    }
+
+    /** 
+     * Creates a parser that starts reading its input in chunks of 
+     * bufferSize chars. As long as the input fills the whole buffer,
+     * the buffer is doubled, up to maxBufferSize chars. Small messages
+     * thus keep a small buffer, while large streams are read with few
+     * read calls. */
+
+    public KXmlParser(int bufferSize, int maxBufferSize) {
+        if (bufferSize < 4 || maxBufferSize < bufferSize)
+            throw new IllegalArgumentException();
+        this.bufferSize = bufferSize;
+        this.maxBufferSize = maxBufferSize;
+        srcBuf = new char[bufferSize];
+    }
+
+    /** 
+     * Prepares the parser for reuse, see KXmlParserPool: drops the input
+     * and resets the features and properties except for the symbol table.
+     * Buffers and stacks that grew beyond maxBuffer chars or entries are
+     * replaced by small ones. */
+
+    final void recycle(int maxBuffer) {
+        releaseInput();
+        reader = null;
+        in = null;
+        feed = null;
+        pendingType = 0;
+        location = null;
+        error = null;
+        encoding = null;
+        version = null;
+        standalone = null;
+        name = null;
+        namespace = null;
+        prefix = null;
+        degenerated = false;
+        attributeCount = -1;
+        type = START_DOCUMENT;
+        txtPos = 0;
+
+        processNsp = false;
+        relaxed = false;
+        lazyAttributes = false;
+        rawSkip = false;
+        textChunkSize = 0;
+
+        resetInput();
+
+        if (srcBuf.length > Math.max(maxBuffer, bufferSize))
+            srcBuf = new char[bufferSize];
+        if (byteBuf != null && byteBuf.length > maxBuffer)
+            byteBuf = null;
+        if (txtBuf.length > maxBuffer)
+            txtBuf = new char[128];
+        if (attributes.length > maxBuffer) {
+            attributes = new String[16];
+            attributeSpans = new int[8];
+        }
+        if (elementStack.length > maxBuffer) {
+            elementStack = new String[16];
+            nspCounts = new int[4];
+        }
+        if (nspStack.length > maxBuffer) {
+            nspStack = new String[8];
+            nspPrev = new int[4];
+        }
+        if (prefixTable.length > maxBuffer) {
+            prefixTable = new String[16];
+            prefixBinding = new int[16];
+        }
     }
 
     private final boolean isProp(String n1, boolean prop, String n2) {
@@ -109,105 +332,96 @@ public class KXmlParser implements XmlPullParser {
             return n1.substring(40).equals(n2);
     }
 
-    private final boolean adjustNsp() throws XmlPullParserException {
+    /** 
+     * Processes the namespace declarations of the current start tag and
+     * resolves the element and attribute prefixes. The names have already
+     * been split at the colon by parseStartTag: prefixed attributes carry
+     * their prefix in attributes[i + 1] and the local name in
+     * attributes[i + 2]. */
+
+    private final boolean adjustNsp(String elemPrefix, String elemName)
+        throws XmlPullParserException {
 
         boolean any = false;
+        int cnt = attributeCount << 2;
+        int w = 0;
 
-        for (int i = 0; i < attributeCount << 2; i += 4) {
-            // * 4 - 4; i >= 0; i -= 4) {
+        for (int i = 0; i < cnt; i += 4) {
 
-            String attrName = attributes[i + 2];
-            int cut = attrName.indexOf(':');
-            String prefix;
+            String attrPrefix = attributes[i + 1];
 
-            if (cut != -1) {
-                prefix = attrName.substring(0, cut);
-                attrName = attrName.substring(cut + 1);
-            }
-            else if (attrName.equals("xmlns")) {
-                prefix = attrName;
-                attrName = null;
-            }
-            else
-                continue;
+            if (attrPrefix == null
+                ? attributes[i + 2].equals("xmlns")
+                : attrPrefix.equals("xmlns")) {
 
-            if (!prefix.equals("xmlns")) {
-                any = true;
-            }
-            else {
-                int j = (nspCounts[depth]++) << 1;
+                String declared = attrPrefix == null ? null : attributes[i + 2];
 
-                nspStack = ensureCapacity(nspStack, j + 2);
-                nspStack[j] = attrName;
-                nspStack[j + 1] = attributes[i + 3];
+                // namespace URIs repeat, so they are shared as symbols
 
-                if (attrName != null && attributes[i + 3].equals(""))
-                    error("illegal empty namespace");
+                int j = i >> 1;
+                if (attributeSpans[j + 1] < 0)
+                    resolveAttribute(j);
+                String uri = attributes[i + 3];
+                if (uri == null)
+                    uri = symbols.add(
+                        txtBuf, attributeSpans[j], attributeSpans[j + 1]);
 
-                //  prefixMap = new PrefixMap (prefixMap, attrName, attr.getValue ());
+                declare(declared, uri);
 
-                //System.out.println (prefixMap);
+                if (declared != null && uri.equals(""))
+                    error("illegal empty namespace");
+            }
+            else {
+                if (attrPrefix != null)
+                    any = true;
 
-                System.arraycopy(
-                    attributes,
-                    i + 4,
-                    attributes,
-                    i,
-                    ((--attributeCount) << 2) - i);
+                // move the attribute down over removed declarations
 
-                i -= 4;
+                if (w != i) {
+                    System.arraycopy(attributes, i, attributes, w, 4);
+                    attributeSpans[w >> 1] = attributeSpans[i >> 1];
+                    attributeSpans[(w >> 1) + 1] = attributeSpans[(i >> 1) + 1];
+                }
+                w += 4;
             }
         }
 
+        attributeCount = w >> 2;
+        attributeHashed = false;
+
         if (any) {
             for (int i = (attributeCount << 2) - 4; i >= 0; i -= 4) {
 
-                String attrName = attributes[i + 2];
-                int cut = attrName.indexOf(':');
+                String attrPrefix = attributes[i + 1];
+
+                if (attrPrefix == null)
+                    continue;
 
-                if (cut == 0 && !relaxed)
+                if (attrPrefix.length() == 0 && !relaxed)
                     throw new RuntimeException(
-                        "illegal attribute name: " + attrName + " at " + this);
-
-                else if (cut != -1) {
-                    String attrPrefix = attrName.substring(0, cut);
-
-                    attrName = attrName.substring(cut + 1);
-
-                    String attrNs = getNamespace(attrPrefix);
-
-                    if (attrNs == null && !relaxed)
-                        throw new RuntimeException(
-                            "Undefined Prefix: " + attrPrefix + " in " + this);
-
-                    attributes[i] = attrNs;
-                    attributes[i + 1] = attrPrefix;
-                    attributes[i + 2] = attrName;
-
-                    /*
-                                        if (!relaxed) {
-                                            for (int j = (attributeCount << 2) - 4; j > i; j -= 4)
-                                                if (attrName.equals(attributes[j + 2])
-                                                    && attrNs.equals(attributes[j]))
-                                                    exception(
-                                                        "Duplicate Attribute: {"
-                                                            + attrNs
-                                                            + "}"
-                                                            + attrName);
-                                        }
-                        */
-                }
-            }
-        }
+                        "illegal attribute name: :"
+                            + attributes[i + 2]
+                            + " at "
+                            + this);
+
+                String attrNs = getNamespace(attrPrefix);
 
-        int cut = name.indexOf(':');
+                if (attrNs == null && !relaxed)
+                    throw new RuntimeException(
+                        "Undefined Prefix: " + attrPrefix + " in " + this);
+
+                attributes[i] = attrNs;
+            }
 
-        if (cut == 0)
-            error("illegal tag name: " + name);
+            if (!relaxed)
+                checkDuplicates(0);
+        }
 
-        if (cut != -1) {
-            prefix = name.substring(0, cut);
-            name = name.substring(cut + 1);
+        if (elemPrefix != null) {
+            if (elemPrefix.length() == 0)
+                error("illegal tag name: " + name);
+            prefix = elemPrefix;
+            name = elemName;
         }
 
         this.namespace = getNamespace(prefix);
@@ -221,6 +435,110 @@ public class KXmlParser implements XmlPullParser {
         return any;
     }
 
+    /** 
+     * Splits the name that readName has just returned at nameColon. The
+     * local name is returned and the prefix is stored in splitPrefix. As
+     * the names are symbols, the result can be cached by identity. */
+
+    private final String split(String qName) {
+        int h = qName.hashCode();
+        int i = ((h ^ (h >>> 8)) & 255) * 3;
+        String[] cache = splitCache;
+
+        if (cache[i] != qName) {
+            int len = nameColon - txtPos;
+            cache[i] = qName;
+            cache[i + 1] = symbols.add(txtBuf, txtPos, len);
+            cache[i + 2] =
+                symbols.add(txtBuf, nameColon + 1, qName.length() - len - 1);
+        }
+        splitPrefix = cache[i + 1];
+        return cache[i + 2];
+    }
+
+    /** Adds a namespace declaration to the current element */
+
+    private final void declare(String prefix, String uri) {
+        int j = (nspCounts[depth]++) << 1;
+
+        nspStack = ensureCapacity(nspStack, j + 2);
+        nspStack[j] = prefix;
+        nspStack[j + 1] = uri;
+
+        nspPrev = ensureCapacity(nspPrev, (j >> 1) + 1);
+
+        if (prefix == null) {
+            nspPrev[j >> 1] = defaultBinding;
+            defaultBinding = j;
+        }
+        else {
+            int slot = prefixSlot(prefix, true);
+            nspPrev[j >> 1] = prefixBinding[slot];
+            prefixBinding[slot] = j;
+        }
+    }
+
+    /** Drops the bindings of the declarations of the element at the 
+        current depth, which is about to be left */
+
+    private final void unbind() {
+        for (int k = nspCounts[depth] - 1; k >= nspCounts[depth - 1]; k--) {
+            String prefix = nspStack[k << 1];
+            if (prefix == null)
+                defaultBinding = nspPrev[k];
+            else
+                prefixBinding[prefixSlot(prefix, false)] = nspPrev[k];
+        }
+    }
+
+    /** 
+     * Returns the slot of the given prefix in prefixTable, or -1 if it was
+     * never bound. If add is set, missing prefixes are added. */
+
+    private final int prefixSlot(String prefix, boolean add) {
+        int mask = prefixTable.length - 1;
+        int i = prefix.hashCode() & mask;
+
+        while (true) {
+            String p = prefixTable[i];
+            if (p == null)
+                break;
+            if (p == prefix || p.equals(prefix))
+                return i;
+            i = (i + 1) & mask;
+        }
+
+        if (!add)
+            return -1;
+
+        if (prefixCount * 2 >= prefixTable.length) {
+            String[] oldTable = prefixTable;
+            int[] oldBinding = prefixBinding;
+            prefixTable = new String[oldTable.length << 1];
+            prefixBinding = new int[oldTable.length << 1];
+            mask = prefixTable.length - 1;
+
+            for (int k = 0; k < oldTable.length; k++) {
+                if (oldTable[k] != null) {
+                    int n = oldTable[k].hashCode() & mask;
+                    while (prefixTable[n] != null)
+                        n = (n + 1) & mask;
+                    prefixTable[n] = oldTable[k];
+                    prefixBinding[n] = oldBinding[k];
+                }
+            }
+
+            i = prefix.hashCode() & mask;
+            while (prefixTable[i] != null)
+                i = (i + 1) & mask;
+        }
+
+        prefixTable[i] = prefix;
+        prefixBinding[i] = -1;
+        prefixCount++;
+        return i;
+    }
+
     private final String[] ensureCapacity(String[] arr, int required) {
         if (arr.length >= required)
             return arr;
@@ -229,6 +547,30 @@ public class KXmlParser implements XmlPullParser {
         return bigger;
     }
 
+    private final int[] ensureCapacity(int[] arr, int required) {
+        if (arr.length >= required)
+            return arr;
+        int[] bigger = new int[required + 8];
+        System.arraycopy(arr, 0, bigger, 0, arr.length);
+        return bigger;
+    }
+
+    /** Returns the value of the attribute with the given index, creating
+        the string from its span in txtBuf on first access. */
+
+    private final String attributeValue(int index) {
+        int i = (index << 2) + 3;
+        String value = attributes[i];
+        if (value == null) {
+            int j = index << 1;
+            if (attributeSpans[j + 1] < 0)
+                resolveAttribute(j);
+            value = new String(txtBuf, attributeSpans[j], attributeSpans[j + 1]);
+            attributes[i] = value;
+        }
+        return value;
+    }
+
     private final void error(String desc) throws XmlPullParserException {
         if (relaxed) {
             if (error == null)
@@ -251,11 +593,13 @@ public class KXmlParser implements XmlPullParser {
 
     private final void nextImpl() throws IOException, XmlPullParserException {
 
-        if (reader == null)
+        if (reader == null && in == null && !borrowed)
             exception("No Input specified");
 
-        if (type == END_TAG)
+        if (type == END_TAG) {
+            unbind();
             depth--;
+        }
 
         while (true) {
             attributeCount = -1;
@@ -299,6 +643,12 @@ public class KXmlParser implements XmlPullParser {
             namespace = null;
             //            text = null;
 
+            if (cdataOpen) {
+                cdataOpen = false;
+                type = parseLegacyContent(']', CDSECT, true);
+                return;
+            }
+
             type = peekType();
 
             switch (type) {
@@ -333,6 +683,7 @@ public class KXmlParser implements XmlPullParser {
                     type = parseLegacy(token);
                     if (type != XML_DECL)
                         return;
+                    markEvent();
             }
         }
     }
@@ -343,7 +694,6 @@ public class KXmlParser implements XmlPullParser {
         String req = "";
         int term;
         int result;
-        int prev = 0;
 
         read(); // <
         int c = read();
@@ -361,6 +711,7 @@ public class KXmlParser implements XmlPullParser {
 
                 if ((peek(0) == 'l' || peek(0) == 'L') && peek(1) <= ' ') {
 
+                    updatePosition();
                     if (line != 1 || column > 4)
                         error("PI must not start with xml");
 
@@ -369,19 +720,19 @@ public class KXmlParser implements XmlPullParser {
                     if (attributeCount < 1 || !"version".equals(attributes[2]))
                         error("version expected");
 
-                    version = attributes[3];
+                    version = attributeValue(0);
 
                     int pos = 1;
 
                     if (pos < attributeCount
                         && "encoding".equals(attributes[2 + 4])) {
-                        encoding = attributes[3 + 4];
+                        encoding = attributeValue(1);
                         pos++;
                     }
 
                     if (pos < attributeCount
                         && "standalone".equals(attributes[4 * pos + 2])) {
-                        String st = attributes[3 + 4 * pos];
+                        String st = attributeValue(pos);
                         if ("yes".equals(st))
                             standalone = new Boolean(true);
                         else if ("no".equals(st))
@@ -436,35 +787,78 @@ public class KXmlParser implements XmlPullParser {
 
         if (result == DOCDECL)
             parseDoctype(push);
-        else {
-            while (true) {
-                c = read();
-                if (c == -1){
-                    error(UNEXPECTED_EOF);
-                    return COMMENT;
-                }
+        else
+            result = parseLegacyContent(term, result, push);
+
+        return result;
+    }
 
-                if (push)
-                    push(c);
+    /** 
+     * Reads the content of a processing instruction, comment or CDATA
+     * section up to the terminator ("?>", "-->" or "]]>"). A CDATA 
+     * section may end early at chunkLimit, see textChunkSize. Returns 
+     * result, or COMMENT for an error. */
 
-                if ((term == '?' || c == term)
-                    && peek(0) == term
-                    && peek(1) == '>')
-                    break;
+    private final int parseLegacyContent(int term, int result, boolean push)
+        throws IOException, XmlPullParserException {
+
+        int prev = 0;
+        boolean chunked = term == ']' && textChunkSize != 0;
+
+        while (true) {
+            if (term != '?') {
+                // comment and CDATA content up to a possible terminator
+                int p = srcPos;
+                int end = srcCount;
+
+                if (chunked) {
+                    long left = chunkLimit - consumed - p;
+                    if (left <= 0) {
+                        cdataOpen = true;
+                        return result;
+                    }
+                    if (left < end - p)
+                        end = p + (int) left;
+                }
 
-                prev = c;
+                while (p < end && srcBuf[p] != term && srcBuf[p] != '\r')
+                    p++;
+                if (p > srcPos) {
+                    if (push)
+                        push(srcBuf, srcPos, p - srcPos);
+                    prev = srcBuf[p - 1];
+                    srcPos = p;
+                }
+                if (chunked && p == end && end < srcCount)
+                    continue;
             }
 
-            if (term == '-' && prev == '-' && !relaxed)
-                error("illegal comment delimiter: --->");
+            int c = read();
+            if (c == -1){
+                error(UNEXPECTED_EOF);
+                return COMMENT;
+            }
 
-            read();
-            read();
+            if (push)
+                push(c);
 
-            if (push && term != '?')
-                txtPos--;
+            if ((term == '?' || c == term)
+                && peek(0) == term
+                && peek(1) == '>')
+                break;
 
+            prev = c;
         }
+
+        if (term == '-' && prev == '-' && !relaxed)
+            error("illegal comment delimiter: --->");
+
+        read();
+        read();
+
+        if (push && term != '?')
+            txtPos--;
+
         return result;
     }
 
@@ -598,6 +992,24 @@ public class KXmlParser implements XmlPullParser {
         txtBuf[txtPos++] = (char) c;
     }
 
+    /** Pushes a run of chars, updating isWhitespace */
+
+    private final void push(char[] buf, int start, int len) {
+
+        for (int i = start; isWhitespace && i < start + len; i++)
+            isWhitespace = buf[i] <= ' ';
+
+        if (txtPos + len > txtBuf.length) {
+            char[] bigger =
+                new char[Math.max(txtPos + len, txtPos * 4 / 3 + 4)];
+            System.arraycopy(txtBuf, 0, bigger, 0, txtPos);
+            txtBuf = bigger;
+        }
+
+        System.arraycopy(buf, start, txtBuf, txtPos, len);
+        txtPos += len;
+    }
+
     /** Sets name and attributes */
 
     private final void parseStartTag(boolean xmldecl)
@@ -607,6 +1019,14 @@ public class KXmlParser implements XmlPullParser {
             read();
         name = readName();
         attributeCount = 0;
+        attributeHashed = false;
+
+        String elemPrefix = null;
+        String elemName = null;
+        if (processNsp && !xmldecl && nameColon != -1) {
+            elemName = split(name);
+            elemPrefix = splitPrefix;
+        }
 
         while (true) {
             skip();
@@ -638,6 +1058,16 @@ public class KXmlParser implements XmlPullParser {
             if (c == -1) {
                 error(UNEXPECTED_EOF);
                 //type = COMMENT;
+
+                // adjustNsp is skipped, so undo the prefix split
+
+                for (int i = (attributeCount << 2) - 4; i >= 0; i -= 4) {
+                    if (attributes[i + 1] != null) {
+                        attributes[i + 2] =
+                            symbols.add(attributes[i + 1] + ":" + attributes[i + 2]);
+                        attributes[i + 1] = null;
+                    }
+                }
                 return;
             }
 
@@ -652,10 +1082,22 @@ public class KXmlParser implements XmlPullParser {
             int i = (attributeCount++) << 2;
 
             attributes = ensureCapacity(attributes, i + 4);
+            attributeSpans = ensureCapacity(attributeSpans, (i >> 1) + 2);
 
             attributes[i++] = "";
-            attributes[i++] = null;
-            attributes[i++] = attrName;
+            if (processNsp && !xmldecl && nameColon != -1) {
+                attributes[i + 1] = split(attrName);
+                attributes[i] = splitPrefix;
+                i += 2;
+            }
+            else {
+                attributes[i++] = null;
+                attributes[i++] = attrName;
+            }
+            int span = (attributeCount - 1) << 1;
+            attributes[i] = null;
+            attributeSpans[span] = txtPos;
+            attributeSpans[span + 1] = 0;
 
             skip();
 
@@ -664,6 +1106,7 @@ public class KXmlParser implements XmlPullParser {
             		error("Attr.value missing f. "+attrName);
             	}
                 attributes[i] = attrName;
+                attributeSpans[span] = -1;
             }
             else {
                 read('=');
@@ -679,11 +1122,18 @@ public class KXmlParser implements XmlPullParser {
 				else 
 					read();
 				
+                // the value stays in txtBuf until it is requested
+
                 int p = txtPos;
-                pushText(delimiter, true);
 
-                attributes[i] = get(p);
-                txtPos = p;
+                if (lazyAttributes && delimiter != ' ') {
+                    pushRaw(delimiter);
+                    attributeSpans[span + 1] = ~(txtPos - p);
+                }
+                else {
+                    pushText(delimiter, true);
+                    attributeSpans[span + 1] = txtPos - p;
+                }
 
                 if (delimiter != ' ')
                     read(); // skip endquote
@@ -703,18 +1153,11 @@ public class KXmlParser implements XmlPullParser {
 
         nspCounts[depth] = nspCounts[depth - 1];
 
-        /*
-        		if(!relaxed){
-                for (int i = attributeCount - 1; i > 0; i--) {
-                    for (int j = 0; j < i; j++) {
-                        if (getAttributeName(i).equals(getAttributeName(j)))
-                            exception("Duplicate Attribute: " + getAttributeName(i));
-                    }
-                }
-        		}
-        */
+        if (!relaxed)
+            checkDuplicates(1);
+
         if (processNsp)
-            adjustNsp();
+            adjustNsp(elemPrefix, elemName);
         else
             namespace = "";
 
@@ -723,6 +1166,143 @@ public class KXmlParser implements XmlPullParser {
         elementStack[sp + 2] = name;
     }
 
+    /** 
+     * Throws an exception if two attributes of the start tag have the 
+     * same local name and the same prefix (key 1) or namespace (key 0).
+     * Many attributes are checked in linear time by entering them in 
+     * attributeHash, which then also serves getAttributeIndex(). */
+
+    private final void checkDuplicates(int key) throws XmlPullParserException {
+
+        if (attributeCount <= ATTRIBUTE_HASH_THRESHOLD) {
+            for (int i = (attributeCount << 2) - 4; i > 0; i -= 4)
+                for (int j = i - 4; j >= 0; j -= 4)
+                    if (sameAttribute(i, j, key))
+                        duplicateAttribute(i, key);
+            return;
+        }
+
+        int mask = clearAttributeHash();
+        for (int index = 0; index < attributeCount; index++) {
+            int i = index << 2;
+            int slot = hash(attributes[i + 2]) & mask;
+            while (attributeHash[slot] != 0) {
+                if (sameAttribute(i, (attributeHash[slot] - 1) << 2, key))
+                    duplicateAttribute(i, key);
+                slot = (slot + 1) & mask;
+            }
+            attributeHash[slot] = index + 1;
+        }
+
+        attributeHashed = true;
+    }
+
+    private final boolean sameAttribute(int i, int j, int key) {
+        String a = attributes[i + key];
+        String b = attributes[j + key];
+        return attributes[i + 2].equals(attributes[j + 2])
+            && (a == null ? b == null : a.equals(b));
+    }
+
+    private final void duplicateAttribute(int i, int key)
+        throws XmlPullParserException {
+        String qualifier = attributes[i + key];
+        exception(
+            "Duplicate Attribute: "
+                + (qualifier == null
+                    ? ""
+                    : key == 0 ? "{" + qualifier + "}" : qualifier + ":")
+                + attributes[i + 2]);
+    }
+
+    /** 
+     * Copies an attribute value up to the delimiter without resolving
+     * entities or normalizing line ends, see lazyAttributes */
+
+    private final void pushRaw(int delimiter) throws IOException {
+
+        while (true) {
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end && buf[p] != delimiter && buf[p] != '\r')
+                p++;
+
+            if (p > srcPos) {
+                push(buf, srcPos, p - srcPos);
+                srcPos = p;
+            }
+
+            int next = peek(0);
+            if (next == -1 || next == delimiter)
+                break;
+
+            push(read());
+        }
+    }
+
+    /** 
+     * Resolves the entity references of the raw attribute value at the
+     * given position of attributeSpans and replaces the span with the
+     * result, which is appended to txtBuf. Errors cannot be reported as
+     * XmlPullParserException any more at this point; in relaxed mode,
+     * they are ignored, otherwise a RuntimeException is thrown. As in
+     * pushEntity, unresolved references are dropped for nextToken(). */
+
+    private final void resolveAttribute(int j) {
+
+        int pos = attributeSpans[j];
+        int end = pos + ~attributeSpans[j + 1];
+        int start = txtPos;
+
+        while (pos < end) {
+            char c = txtBuf[pos++];
+
+            if (c == '\n') {
+                push(' ');
+                continue;
+            }
+            if (c != '&') {
+                push(c);
+                continue;
+            }
+
+            int cut = pos;
+            while (cut < end && txtBuf[cut] != ';') {
+                c = txtBuf[cut];
+                if (c < 128
+                    && (c < '0' || c > '9')
+                    && (c < 'a' || c > 'z')
+                    && (c < 'A' || c > 'Z')
+                    && c != '_'
+                    && c != '-'
+                    && c != '#')
+                    break;
+                cut++;
+            }
+
+            if (cut == end || txtBuf[cut] != ';') {
+                if (!relaxed)
+                    throw new RuntimeException(
+                        "unterminated entity ref in attribute value");
+                push('&');
+                continue;
+            }
+
+            if (!pushEntityCode(pos, cut) && !relaxed && !token)
+                throw new RuntimeException(
+                    "unresolved: &"
+                        + new String(txtBuf, pos, cut - pos)
+                        + "; at "
+                        + this);
+            pos = cut + 1;
+        }
+
+        attributeSpans[j] = start;
+        attributeSpans[j + 1] = txtPos - start;
+    }
+
     /** 
      * result: isWhitespace; if the setName parameter is set,
      * the name of the entity is stored in "name" */
@@ -763,48 +1343,175 @@ public class KXmlParser implements XmlPullParser {
             push(read());
         }
 
-        String code = get(pos);
+        int end = txtPos;
         txtPos = pos - 1;
         if (token && type == ENTITY_REF){
-            name = code;
+            name = new String(txtBuf, pos, end - pos);
         }
 
-        if (code.charAt(0) == '#') {
-            int c =
-                (code.charAt(1) == 'x'
-                    ? Integer.parseInt(code.substring(2), 16)
-                    : Integer.parseInt(code.substring(1)));
-            push(c);
-            return;
-        }
+        unresolved = !pushEntityCode(pos, end);
 
-        String result = (String) entityMap.get(code);
+        if (unresolved && !token)
+            error("unresolved: &" + new String(txtBuf, pos, end - pos) + ";");
+    }
 
-        unresolved = result == null;
+    /** 
+     * Pushes the replacement text of the entity whose name is stored in
+     * txtBuf[start..end). Character references and the predefined 
+     * entities are decoded in place; only other entities are looked up
+     * in entityMap. The replacement is determined before anything is 
+     * pushed, so the name may be overwritten. Returns false if the 
+     * entity is undefined or the character reference is malformed. */
 
-        if (unresolved) {
-            if (!token)
-                error("unresolved: &" + code + ";");
-        }
-        else {
-            for (int i = 0; i < result.length(); i++)
-                push(result.charAt(i));
-        }
-    }
+    private final boolean pushEntityCode(int start, int end) {
 
-    /** types:
-    '<': parse to any token (for nextToken ())
-    '"': parse to quote
-    ' ': parse to whitespace or '>'
-    */
+        char[] buf = txtBuf;
+        int len = end - start;
 
-    private final void pushText(int delimiter, boolean resolveEntities)
-        throws IOException, XmlPullParserException {
+        if (len == 0)
+            return false;
 
-        int next = peek(0);
-        int cbrCount = 0;
+        char c0 = buf[start];
 
-        while (next != -1 && next != delimiter) { // covers eof, '<', '"'
+        if (c0 == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (i < end && buf[i] == 'x') {
+                radix = 16;
+                i++;
+            }
+            if (i == end)
+                return false;
+
+            int code = 0;
+            while (i < end) {
+                int d = Character.digit(buf[i++], radix);
+                if (d == -1)
+                    return false;
+                code = code * radix + d;
+                if (code > 0x10ffff)
+                    return false;
+            }
+
+            if (code >= 0x10000) {
+                code -= 0x10000;
+                push(0xd800 | (code >> 10));
+                push(0xdc00 | (code & 0x3ff));
+            }
+            else
+                push(code);
+            return true;
+        }
+
+        int c = -1;
+
+        switch (len) {
+            case 2 :
+                if (buf[start + 1] == 't') {
+                    if (c0 == 'l')
+                        c = '<';
+                    else if (c0 == 'g')
+                        c = '>';
+                }
+                break;
+            case 3 :
+                if (c0 == 'a' && buf[start + 1] == 'm' && buf[start + 2] == 'p')
+                    c = '&';
+                break;
+            case 4 :
+                if (c0 == 'a'
+                    && buf[start + 1] == 'p'
+                    && buf[start + 2] == 'o'
+                    && buf[start + 3] == 's')
+                    c = '\'';
+                else if (
+                    c0 == 'q'
+                        && buf[start + 1] == 'u'
+                        && buf[start + 2] == 'o'
+                        && buf[start + 3] == 't')
+                    c = '"';
+                break;
+        }
+
+        if (c != -1) {
+            push(c);
+            return true;
+        }
+
+        if (entityMap == null)
+            return false;
+
+        String result = (String) entityMap.get(new String(buf, start, len));
+
+        if (result == null)
+            return false;
+
+        for (int i = 0; i < result.length(); i++)
+            push(result.charAt(i));
+        return true;
+    }
+
+    /** types:
+    '<': parse to any token (for nextToken ())
+    '"': parse to quote
+    ' ': parse to whitespace or '>'
+    */
+
+    private final void pushText(int delimiter, boolean resolveEntities)
+        throws IOException, XmlPullParserException {
+
+        boolean attr = type == START_TAG;
+        int cbrCount = 0;
+
+        while (true) {
+
+            // copy the run of chars that need no special treatment
+
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+            boolean ws = isWhitespace;
+            boolean chunked = delimiter == '<' && textChunkSize != 0;
+
+            if (chunked) {
+                long left = chunkLimit - consumed - p;
+                if (left < end - p)
+                    end = p + (int) Math.max(left, 0);
+            }
+
+            while (p < end) {
+                char c = buf[p];
+                if (c > '>') {
+                    if (c == ']')
+                        break;
+                    ws = false;
+                }
+                else if (c <= ' ') {
+                    if (c == '\r' || delimiter == ' ' || (c == '\n' && attr))
+                        break;
+                }
+                else if (c == '<' || c == '&' || c == '>' || c == delimiter)
+                    break;
+                else
+                    ws = false;
+                p++;
+            }
+
+            if (p > srcPos) {
+                isWhitespace = ws;
+                push(buf, srcPos, p - srcPos);
+                srcPos = p;
+                cbrCount = 0;
+            }
+
+            // the rest of the text follows in the next event
+            if (chunked && consumed + p >= chunkLimit)
+                break;
+
+            int next = peek(0);
+
+            if (next == -1 || next == delimiter) // covers eof, '<', '"'
+                break;
 
             if (delimiter == ' ')
                 if (next <= ' ' || next == '>')
@@ -816,7 +1523,7 @@ public class KXmlParser implements XmlPullParser {
 
                 pushEntity();
             }
-            else if (next == '\n' && type == START_TAG) {
+            else if (next == '\n' && attr) {
                 read();
                 push(' ');
             }
@@ -830,8 +1537,6 @@ public class KXmlParser implements XmlPullParser {
                 cbrCount++;
             else
                 cbrCount = 0;
-
-            next = peek(0);
         }
     }
 
@@ -843,76 +1548,282 @@ public class KXmlParser implements XmlPullParser {
     }
 
     private final int read() throws IOException {
-        int result;
 
-        if (peekCount == 0)
-            result = peek(0);
-        else {
-            result = peek[0];
-            peek[0] = peek[1];
+        if (srcPos == srcCount && !fill(1)) {
+            updatePosition();
+            column++;
+            return -1;
         }
-        //		else {
-        //			result = peek[0]; 
-        //			System.arraycopy (peek, 1, peek, 0, peekCount-1);
-        //		}
-        peekCount--;
 
-        column++;
+        int result = srcBuf[srcPos++];
 
-        if (result == '\n') {
-
-            line++;
-            column = 1;
+        if (result == '\r') {
+            if (srcPos == srcCount)
+                fill(1);
+            if (srcPos < srcCount && srcBuf[srcPos] == '\n')
+                srcPos++;
+            result = '\n';
         }
 
         return result;
     }
 
-    /** Does never read more than needed */
+    /** 
+     * Returns the char at pos (0 or 1) with line ends normalized to '\n'.
+     * Does never read more than needed */
 
     private final int peek(int pos) throws IOException {
 
-        while (pos >= peekCount) {
+        if (srcPos + pos >= srcCount && !fill(pos + 1))
+            return -1;
+
+        int p = srcPos;
+
+        if (pos == 1 && srcBuf[p] == '\r' && srcBuf[p + 1] == '\n') {
+            if (p + 2 >= srcCount && !fill(3))
+                return -1;
+            p = srcPos + 1;
+        }
+
+        int result = srcBuf[p + pos];
+        return result == '\r' ? '\n' : result;
+    }
+
+    /** 
+     * Makes sure that at least cnt chars are available in srcBuf,
+     * moving the unread chars to the front if more input needs to be
+     * read. Returns false if the input ends before. */
+
+    private final boolean fill(int cnt) throws IOException {
+
+        if (srcPos + cnt <= srcCount)
+            return true;
+
+        // a borrowed char array is all there is
+        if (borrowed && in == null)
+            return false;
+
+        if (srcPos > 0) {
+            updatePosition();
+            consumed += srcPos;
+            srcCount -= srcPos;
+            System.arraycopy(srcBuf, srcPos, srcBuf, 0, srcCount);
+            srcPos = 0;
+            lineMark = 0;
+        }
+
+        while (srcCount < cnt) {
+            if (fullRead && srcBuf.length < maxBufferSize)
+                grow();
+
+            int len = srcBuf.length - srcCount;
+            int got =
+                in != null
+                    ? decode(srcBuf, srcCount, len)
+                    : reader.read(srcBuf, srcCount, len);
+            if (got <= 0)
+                return false;
+            if (in == null)
+                fullRead = got == len;
+            srcCount += got;
+        }
+        return true;
+    }
+
+    /** Doubles srcBuf (and byteBuf for direct decoding), keeping the 
+        chars not consumed yet */
+
+    private final void grow() {
+        char[] bigger = new char[Math.min(srcBuf.length * 2, maxBufferSize)];
+        System.arraycopy(srcBuf, 0, bigger, 0, srcCount);
+        srcBuf = bigger;
+
+        if (in != null && !borrowed && byteBuf.length < bigger.length) {
+            byte[] bytes = new byte[bigger.length];
+            byteCount -= bytePos;
+            System.arraycopy(byteBuf, bytePos, bytes, 0, byteCount);
+            bytePos = 0;
+            byteBuf = bytes;
+        }
+    }
+
+    /** 
+     * Updates line and column for the chars consumed since lineMark.
+     * A CR LF pair counts as a single line end */
+
+    private final void updatePosition() {
+        if (eventExtra == -1) {
+            countPosition((int) (eventStart - consumed));
+            eventExtra = extraBytes;
+        }
+        countPosition(srcPos);
+    }
+
+    private final void countPosition(int end) {
 
-            int nw;
+        boolean utf8 = in != null && byteEncoding == UTF_8;
 
-            if (srcBuf.length <= 1)
-                nw = reader.read();
-            else if (srcPos < srcCount)
-                nw = srcBuf[srcPos++];
+        for (int i = lineMark; i < end; i++) {
+            char c = srcBuf[i];
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' || !prevCR) {
+                    line++;
+                    column = 1;
+                }
+                prevCR = c == '\r';
+            }
             else {
-                srcCount = reader.read(srcBuf, 0, srcBuf.length);
-                if (srcCount <= 0)
-                    nw = -1;
-                else
-                    nw = srcBuf[0];
+                column++;
+                prevCR = false;
+                if (c >= 0x80 && utf8)
+                    extraBytes += c < 0x800 || (c >= 0xd800 && c < 0xe000) ? 1 : 2;
+            }
+        }
+        lineMark = end;
+    }
+
+    /** 
+     * Records the current position as start of the event to be parsed,
+     * which also starts a new text chunk */
+
+    private final void markEvent() {
+        eventStart = consumed + srcPos;
+        eventExtra = -1;
+        chunkLimit = eventStart + textChunkSize;
+    }
+
+    /** 
+     * Decodes bytes from the input stream into buf. Returns the number 
+     * of chars decoded, or -1 at the end of the stream. Like peek, this 
+     * does not block for more input once some chars are available. 
+     * Malformed input is replaced by U+FFFD, as InputStreamReader does. */
+
+    private final int decode(char[] buf, int off, int len)
+        throws IOException {
+
+        int pos = off;
+        int end = off + len;
+
+        while (pos < end) {
+
+            if (bytePos == byteCount && (pos > off || !fillBytes()))
+                break;
+
+            int b = byteBuf[bytePos];
+
+            if (b >= 0) {
+                // ASCII fast path
+                byte[] bytes = byteBuf;
+                int i = bytePos;
+                int stop = i + end - pos;
+                if (stop > byteCount)
+                    stop = byteCount;
+
+                do {
+                    buf[pos++] = (char) b;
+                    if (++i == stop)
+                        break;
+                    b = bytes[i];
+                }
+                while (b >= 0);
 
-                srcPos = 1;
+                bytePos = i;
+                continue;
             }
 
-            if (nw == '\r') {
-                wasCR = true;
-                peek[peekCount++] = '\n';
+            if (byteEncoding != UTF_8) {
+                buf[pos++] =
+                    byteEncoding == ISO_8859_1 ? (char) (b & 0x0ff) : '\ufffd';
+                bytePos++;
+                continue;
             }
-            else {
-                if (nw == '\n') {
-                    if (!wasCR)
-                        peek[peekCount++] = '\n';
+
+            // lead byte: sequence length; second byte range excluding
+            // overlong forms and values beyond U+10FFFF
+
+            int u = b & 0x0ff;
+            int cnt =
+                u < 0x0c2 ? 1 : u < 0x0e0 ? 2 : u < 0x0f0 ? 3 : u < 0x0f5 ? 4 : 1;
+
+            if (cnt == 1) {
+                buf[pos++] = '\ufffd';
+                bytePos++;
+                continue;
+            }
+
+            if (cnt == 4 && end - pos < 2)
+                break;
+
+            if (bytePos + cnt > byteCount) {
+                if (pos > off)
+                    break;
+                if (fillBytes()) {
+                    if (bytePos + cnt > byteCount)
+                        continue;
                 }
-                else
-                    peek[peekCount++] = nw;
+                else if (feed != null && !feed.ended)
+                    break;
+            }
+
+            int lo = u == 0x0e0 ? 0x0a0 : u == 0x0f0 ? 0x090 : 0x080;
+            int hi = u == 0x0f4 ? 0x08f : 0x0bf;
+            int avail = byteCount - bytePos;
+            int c = u & (0x07f >> cnt);
+            int i = 1;
+
+            while (i < cnt && i < avail) {
+                int cb = byteBuf[bytePos + i] & 0x0ff;
+                if (i == 1 ? cb < lo || cb > hi : (cb & 0x0c0) != 0x080)
+                    break;
+                c = (c << 6) | (cb & 0x03f);
+                i++;
+            }
+
+            if (i < cnt || (c >= 0x0d800 && c <= 0x0dfff)) {
+                // malformed or truncated: replace the valid prefix
+                buf[pos++] = '\ufffd';
+                bytePos += i;
+                continue;
+            }
 
-                wasCR = false;
+            if (c >= 0x010000) {
+                c -= 0x010000;
+                buf[pos++] = (char) (0x0d800 | (c >> 10));
+                c = 0x0dc00 | (c & 0x03ff);
             }
+            buf[pos++] = (char) c;
+            bytePos += cnt;
         }
 
-        return peek[pos];
+        return pos == off ? -1 : pos - off;
+    }
+
+    /** 
+     * Reads more bytes into byteBuf, keeping the ones not consumed yet.
+     * Returns false at the end of the stream */
+
+    private final boolean fillBytes() throws IOException {
+        if (borrowed)
+            return false;
+
+        int keep = byteCount - bytePos;
+        System.arraycopy(byteBuf, bytePos, byteBuf, 0, keep);
+        bytePos = 0;
+        byteCount = keep;
+
+        int cnt = in.read(byteBuf, keep, byteBuf.length - keep);
+        if (cnt <= 0)
+            return false;
+        fullRead = cnt == byteBuf.length - keep;
+        byteCount += cnt;
+        return true;
     }
 
     private final String readName()
         throws IOException, XmlPullParserException {
 
         int pos = txtPos;
+        int colon = -1;
         int c = peek(0);
         if ((c < 'a' || c > 'z')
             && (c < 'A' || c > 'Z')
@@ -922,20 +1833,45 @@ public class KXmlParser implements XmlPullParser {
             && !relaxed)
             error("name expected");
 
-        do {
-            push(read());
-            c = peek(0);
-        }
-        while ((c >= 'a' && c <= 'z')
-            || (c >= 'A' && c <= 'Z')
-            || (c >= '0' && c <= '9')
-            || c == '_'
-            || c == '-'
-            || c == ':'
-            || c == '.'
-            || c >= 0x0b7);
-
-        String result = get(pos);
+        if (c == ':')
+            colon = pos;
+        push(read());
+
+        while (true) {
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end) {
+                c = buf[p];
+                if ((c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '_'
+                    || c == '-'
+                    || c == '.'
+                    || c >= 0x0b7)
+                    p++;
+                else if (c == ':') {
+                    if (colon == -1)
+                        colon = txtPos + p - srcPos;
+                    p++;
+                }
+                else
+                    break;
+            }
+
+            if (p > srcPos) {
+                push(buf, srcPos, p - srcPos);
+                srcPos = p;
+            }
+
+            if (p < end || !fill(1))
+                break;
+        }
+
+        String result = symbols.add(txtBuf, pos, txtPos - pos);
+        nameColon = colon;
         txtPos = pos;
         return result;
     }
@@ -943,17 +1879,157 @@ public class KXmlParser implements XmlPullParser {
     private final void skip() throws IOException {
 
         while (true) {
-            int c = peek(0);
-            if (c > ' ' || c == -1)
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end && buf[p] <= ' ')
+                p++;
+
+            srcPos = p;
+
+            if (p < end || !fill(1))
                 break;
-            read();
+        }
+    }
+
+    /** 
+     * Moves srcPos to the '&lt;' of the end tag closing the current
+     * element, tracking only the nesting depth. Comments, CDATA sections,
+     * PIs and quoted attribute values are skipped as a whole, so that
+     * markup inside them is not counted; otherwise the content is assumed
+     * to be well-formed and is not checked. */
+
+    private final void skipRaw() throws IOException, XmlPullParserException {
+
+        int level = 1;
+
+        while (true) {
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end && buf[p] != '<')
+                p++;
+
+            srcPos = p;
+
+            if (p == end) {
+                if (!fill(1))
+                    exception(UNEXPECTED_EOF);
+                continue;
+            }
+
+            int c = peek(1);
+            boolean found;
+
+            if (c == '/') {
+                if (--level == 0)
+                    return;
+                found = skipTag() != -1;
+            }
+            else if (c == '?') {
+                read();
+                read();
+                found = skipPast(0, '?');
+            }
+            else if (c == '!') {
+                read();
+                read();
+                if (peek(0) == '-') {
+                    read();
+                    read();
+                    found = skipPast('-', '-');
+                }
+                else if (peek(0) == '[')
+                    found = skipPast(']', ']');
+                else
+                    found = skipTag() != -1;
+            }
+            else {
+                read();
+                c = skipTag();
+                found = c != -1;
+                if (c != '/')
+                    level++;
+            }
+
+            if (!found)
+                exception(UNEXPECTED_EOF);
+        }
+    }
+
+    /** 
+     * Skips up to and including the next '&gt;' outside of quotes and 
+     * returns the char before it, or -1 at the end of the input. */
+
+    private final int skipTag() throws IOException {
+        int quote = 0;
+        int last = 0;
+
+        while (true) {
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end) {
+                char c = buf[p++];
+                if (quote != 0) {
+                    if (c == quote)
+                        quote = 0;
+                }
+                else if (c == '>') {
+                    srcPos = p;
+                    return last;
+                }
+                else if (c == '"' || c == '\'')
+                    quote = c;
+                last = c;
+            }
+
+            srcPos = p;
+            if (!fill(1))
+                return -1;
+        }
+    }
+
+    /** 
+     * Skips up to and including the next '&gt;' that follows the chars a
+     * and b (0 matches any char). Returns false at the end of the input. */
+
+    private final boolean skipPast(int a, int b) throws IOException {
+        int c1 = -1;
+        int c2 = -1;
+
+        while (true) {
+            char[] buf = srcBuf;
+            int p = srcPos;
+            int end = srcCount;
+
+            while (p < end) {
+                char c = buf[p++];
+                if (c == '>' && (a == 0 || c2 == a) && c1 == b) {
+                    srcPos = p;
+                    return true;
+                }
+                c2 = c1;
+                c1 = c;
+            }
+
+            srcPos = p;
+            if (!fill(1))
+                return false;
         }
     }
 
     //  public part starts here...
 
     public void setInput(Reader reader) throws XmlPullParserException {
+        releaseInput();
         this.reader = reader;
+        this.in = null;
+        feed = null;
+        pendingType = 0;
 
         line = 1;
         column = 0;
@@ -966,31 +2042,47 @@ public class KXmlParser implements XmlPullParser {
         version = null;
         standalone = null;
 
-        if (reader == null)
-            return;
+        if (reader != null)
+            resetInput();
+    }
 
+    private final void resetInput() {
         srcPos = 0;
         srcCount = 0;
-        peekCount = 0;
+        lineMark = 0;
+        prevCR = false;
+        fullRead = false;
+        consumed = 0;
+        extraBytes = 0;
+        offsetBase = 0;
+        inputBase = 0;
+        eventStart = 0;
+        eventExtra = 0;
+        cdataOpen = false;
         depth = 0;
+        nspCounts[0] = 0;
+
+        entityMap = null;
 
-        entityMap = new Hashtable();
-        entityMap.put("amp", "&");
-        entityMap.put("apos", "'");
-        entityMap.put("gt", ">");
-        entityMap.put("lt", "<");
-        entityMap.put("quot", "\"");
+        if (prefixCount > 0) {
+            for (int i = 0; i < prefixTable.length; i++)
+                prefixTable[i] = null;
+            prefixCount = 0;
+        }
+        defaultBinding = -1;
     }
 
     public void setInput(InputStream is, String _enc)
         throws XmlPullParserException {
 
+        if (is == null)
+            throw new IllegalArgumentException();
+
+        releaseInput();
         srcPos = 0;
         srcCount = 0;
         String enc = _enc;
-
-        if (is == null)
-            throw new IllegalArgumentException();
+        int bom = 0;
 
         try {
 
@@ -1050,6 +2142,12 @@ public class KXmlParser implements XmlPullParser {
                                 int i = is.read();
                                 if (i == -1)
                                     break;
+                                if (srcCount == srcBuf.length) {
+                                    char[] bigger = new char[srcCount * 2];
+                                    System.arraycopy(
+                                        srcBuf, 0, bigger, 0, srcCount);
+                                    srcBuf = bigger;
+                                }
                                 srcBuf[srcCount++] = (char) i;
                                 if (i == '>') {
                                     String s = new String(srcBuf, 0, srcCount);
@@ -1083,25 +2181,458 @@ public class KXmlParser implements XmlPullParser {
                                 enc = "UTF-8";
                                 srcBuf[0] = srcBuf[3];
                                 srcCount = 1;
+                                bom = 3;
                             }
                     }
                 }
             }
 
-            if (enc == null)
-                enc = "UTF-8";
+            if (enc == null)
+                enc = "UTF-8";
+
+            int sc = srcCount;
+            int be = byteEncoding(enc);
+
+            if (be == 0) {
+                setInput(new InputStreamReader(is, enc));
+                srcCount = sc;
+            }
+            else {
+                // the sniffed chars are still raw bytes; hand them to the decoder
+
+                int size = Math.max(srcBuf.length, sc);
+                if (byteBuf == null || byteBuf.length < size)
+                    byteBuf = new byte[size];
+                for (int i = 0; i < sc; i++)
+                    byteBuf[i] = (byte) srcBuf[i];
+
+                setInput((Reader) null);
+                in = is;
+                byteEncoding = be;
+                bytePos = 0;
+                byteCount = sc;
+                resetInput();
+                offsetBase = bom;
+            }
+            encoding = _enc;
+        }
+        catch (Exception e) {
+            throw new XmlPullParserException(
+                "Invalid stream or encoding: " + e.toString(),
+                this,
+                e);
+        }
+    }
+
+    /** 
+     * Sets the input to len bytes of buf, starting at off. The encoding
+     * is detected as for setInput(InputStream, String). UTF-8, 
+     * ISO-8859-1 and US-ASCII are decoded from the array in place; buf
+     * is not modified and must not be changed while it is parsed. */
+
+    void setInput(byte[] buf, int off, int len, String enc)
+        throws XmlPullParserException {
+
+        setInput(new ByteArrayInputStream(buf, off, len), enc);
+
+        if (in != null) {
+            // restart after the BOM, the sniffed bytes are still in buf
+            spareBytes = byteBuf;
+            byteBuf = buf;
+            borrowed = true;
+            bytePos = off + offsetBase;
+            byteCount = off + len;
+        }
+    }
+
+    /** 
+     * Sets the input to len chars of buf, starting at off, which are 
+     * parsed in place. buf is not modified and must not be changed 
+     * while it is parsed. */
+
+    void setInput(char[] buf, int off, int len)
+        throws XmlPullParserException {
+
+        setInput((Reader) null);
+        spareChars = srcBuf;
+        srcBuf = buf;
+        borrowed = true;
+        resetInput();
+        srcPos = off;
+        srcCount = off + len;
+        lineMark = off;
+        consumed = -off;
+    }
+
+    /** 
+     * Sets the input to bytes that are supplied by feed() as they 
+     * arrive, so that the parser never blocks. While the next event is
+     * not complete, next() and nextToken() return INCOMPLETE and leave
+     * the input untouched; they can be called again after more input 
+     * was fed, or endOfInput() was called. The current event is 
+     * undefined after INCOMPLETE. The other methods that read input, 
+     * like nextTag() or skipSubTree(), must only be used once the rest 
+     * of the element is available.
+     * <p>
+     * If encoding is null, it is detected as for setInput(InputStream, 
+     * String). Only UTF-8, ISO-8859-1 and US-ASCII are supported. */
+
+    public void setFeedInput(String encoding) throws XmlPullParserException {
+        setInput((Reader) null);
+        resetInput();
+        feed = new FeedInput();
+        feedEncoding = encoding;
+    }
+
+    /** Appends len bytes of buf, starting at off, to the feed input */
+
+    public void feed(byte[] buf, int off, int len) {
+        if (feed == null || feed.ended)
+            throw new RuntimeException("no open feed input");
+        feed.append(buf, off, len);
+    }
+
+    /** Marks the end of the feed input */
+
+    public void endOfInput() {
+        if (feed == null)
+            throw new RuntimeException("no feed input");
+        feed.ended = true;
+    }
+
+    /** 
+     * Returns true if the next event can be parsed from the feed input
+     * without running out of input. The encoding is detected first. */
+
+    private final boolean feedReady()
+        throws IOException, XmlPullParserException {
+
+        if (in == null) {
+            if (!feed.ended && !feed.sniffable())
+                return false;
+
+            FeedInput f = feed;
+            Hashtable entities = entityMap;
+            setInput(f, feedEncoding);
+            feed = f;
+            entityMap = entities;
+            if (in == null)
+                exception("feed input must be UTF-8, ISO-8859-1 or US-ASCII");
+            feedScan = 0;
+            markEvent();
+        }
+
+        // the end tag of an empty element is reported without reading
+        if (degenerated || feed.ended)
+            return true;
+
+        int p = srcPos;
+
+        while (true) {
+            int end =
+                cdataOpen
+                    ? scanCdata(p, srcPos + feedScan)
+                    : scanEvent(p, srcPos + feedScan);
+
+            if (end != -1) {
+                // an xml declaration is parsed together with the next event
+                if (cdataOpen || !isXmlDecl(p)) {
+                    feedScan = 0;
+                    return true;
+                }
+                p = end;
+                continue;
+            }
+
+            feedScan = srcCount - srcPos;
+
+            if (srcPos == 0 && srcCount == srcBuf.length) {
+                // events are not split, so the buffer has to hold them
+                char[] bigger = new char[srcBuf.length * 2];
+                System.arraycopy(srcBuf, 0, bigger, 0, srcCount);
+                srcBuf = bigger;
+            }
+
+            int shift = srcPos;
+            if (!fill(srcCount - srcPos + 1))
+                return false;
+            p -= shift - srcPos;
+        }
+    }
+
+    /** Returns true if srcBuf holds the start of an xml declaration at p */
+
+    private final boolean isXmlDecl(int p) {
+        char[] buf = srcBuf;
+        return p + 5 < srcCount
+            && buf[p + 1] == '?'
+            && (buf[p + 2] | 0x20) == 'x'
+            && (buf[p + 3] | 0x20) == 'm'
+            && (buf[p + 4] | 0x20) == 'l'
+            && buf[p + 5] <= ' ';
+    }
+
+    /** 
+     * Returns the index in srcBuf after the markup or text starting at 
+     * p, or -1 if it is not complete before srcCount. The chars before 
+     * from have been scanned without finding an end. This mirrors the 
+     * reading of the parse methods, erring on the side of requiring 
+     * more input than they read. */
+
+    private final int scanEvent(int p, int from) {
+
+        char[] buf = srcBuf;
+        int end = srcCount;
+
+        if (p >= end)
+            return -1;
+
+        if (buf[p] != '<') {
+            // text and entity references end before the next markup
+            for (int i = Math.max(p + 1, from); i < end; i++)
+                if (buf[i] == '<')
+                    return i;
+            return textChunkSize != 0 ? scanTextChunk(p) : -1;
+        }
+
+        if (p + 1 >= end)
+            return -1;
+
+        switch (buf[p + 1]) {
+
+            case '/' :
+                // see parseEndTag
+                int e = skipWhitespace(scanName(p + 2));
+                return e == -1 || e >= end ? -1 : e + 1;
+
+            case '?' :
+                // see parseLegacy: "xm" is consumed before the check for a
+                // declaration, and one more char before the check for "?>"
+                if (p + 3 >= end)
+                    return -1;
+                if ((buf[p + 2] | 0x20) != 'x' || (buf[p + 3] | 0x20) != 'm')
+                    return scanPast(Math.max(p + 3, from - 1), '?', '?');
+                if (p + 5 >= end)
+                    return -1;
+                if (isXmlDecl(p))
+                    return scanTag(p + 4, true);
+                return scanPast(Math.max(p + 5, from - 1), '?', '?');
+
+            case '!' :
+                if (p + 2 >= end)
+                    return -1;
+                if (buf[p + 2] == '-')
+                    return scanPast(Math.max(p + 4, from - 2), '-', '-');
+                if (buf[p + 2] == '[')
+                    return scanCdata(p + 9, from);
+
+                // doctype, see parseDoctype
+                int nesting = 1;
+                boolean quoted = false;
+                for (int i = p + 9; i < end; i++) {
+                    char c = buf[i];
+                    if (c == '\'')
+                        quoted = !quoted;
+                    else if (c == '<' && !quoted)
+                        nesting++;
+                    else if (c == '>' && !quoted && --nesting == 0)
+                        return i + 1;
+                }
+                return -1;
+
+            default :
+                return scanTag(p + 1, false);
+        }
+    }
+
+    /** 
+     * Returns the index after the start tag or xml declaration whose 
+     * name starts at p, or -1. Follows parseStartTag step by step, as 
+     * it reads beyond '>' in some relaxed cases. */
+
+    private final int scanTag(int p, boolean xmldecl) {
+        char[] buf = srcBuf;
+        int end = srcCount;
+        int i = scanName(p);
+
+        while (true) {
+            i = skipWhitespace(i);
+            if (i == -1 || i >= end)
+                return -1;
+
+            char c = buf[i];
+            if (xmldecl) {
+                if (c == '?')
+                    return i + 1 < end ? i + 2 : -1;
+            }
+            else if (c == '/') {
+                i = skipWhitespace(i + 1);
+                return i == -1 || i >= end ? -1 : i + 1;
+            }
+            else if (c == '>')
+                return i + 1;
+
+            i = skipWhitespace(scanName(i));
+            if (i == -1 || i >= end)
+                return -1;
+            if (buf[i] != '=')
+                continue;
+
+            i = skipWhitespace(i + 1);
+            if (i == -1 || i >= end)
+                return -1;
+
+            int delimiter = buf[i];
+            if (delimiter == '\'' || delimiter == '"') {
+                do {
+                    if (++i >= end)
+                        return -1;
+                }
+                while (buf[i] != delimiter);
+                i++;
+            }
+            else {
+                while (i < end && buf[i] > ' ' && buf[i] != '>')
+                    i++;
+            }
+        }
+    }
+
+    /** 
+     * Returns the index after the name starting at p, see readName, or
+     * -1 if it may go on after srcCount */
+
+    private final int scanName(int p) {
+        char[] buf = srcBuf;
+        int end = srcCount;
+
+        // the first char is taken in any case
+        for (int i = p + 1; i < end; i++) {
+            char c = buf[i];
+            if ((c < 'a' || c > 'z')
+                && (c < 'A' || c > 'Z')
+                && (c < '0' || c > '9')
+                && c != '_'
+                && c != '-'
+                && c != '.'
+                && c != ':'
+                && c < 0x0b7)
+                return i;
+        }
+        return -1;
+    }
+
+    /** Returns the index of the first non-whitespace char from p, or -1 */
+
+    private final int skipWhitespace(int p) {
+        if (p == -1)
+            return -1;
+        while (p < srcCount && srcBuf[p] <= ' ')
+            p++;
+        return p;
+    }
+
+    /** 
+     * Returns a value other than -1 if text from p can be parsed up to
+     * chunkLimit: the piece that crosses it, an entity reference or a 
+     * line end, has to be complete. */
+
+    private final int scanTextChunk(int p) {
+        char[] buf = srcBuf;
+        for (int i = (int) Math.max(p, chunkLimit - consumed); i + 1 < srcCount; i++) {
+            char c = buf[i];
+            if (c < 128
+                && (c < '0' || c > '9')
+                && (c < 'a' || c > 'z')
+                && (c < 'A' || c > 'Z')
+                && c != '_'
+                && c != '-'
+                && c != '#')
+                return i + 2;
+        }
+        return -1;
+    }
+
+    /** 
+     * Returns a value other than -1 if the CDATA content starting at p 
+     * can be parsed up to its end or up to chunkLimit */
+
+    private final int scanCdata(int p, int from) {
+        int end = scanPast(Math.max(p, from - 2), ']', ']');
+        if (end == -1
+            && textChunkSize != 0
+            && srcCount >= Math.max(p, chunkLimit - consumed) + 3)
+            return srcCount;
+        return end;
+    }
+
+    /** 
+     * Returns the index after the first a, b, '>' sequence whose first 
+     * char is at p or later, or -1 */
+
+    private final int scanPast(int p, int a, int b) {
+        char[] buf = srcBuf;
+        for (int i = p; i + 2 < srcCount; i++)
+            if (buf[i] == a && buf[i + 1] == b && buf[i + 2] == '>')
+                return i + 3;
+        return -1;
+    }
+
+    /** 
+     * Declares that the current input starts at the given offset of a 
+     * document, which is then included in getEventOffset(); see 
+     * OffsetIndex.restart() */
+
+    void setInputOffset(long offset) {
+        inputBase = offset;
+    }
+
+    /** 
+     * Declares a namespace at depth 0, for input that continues a 
+     * document inside the scope of the declaration; see ParallelParser */
 
-            int sc = srcCount;
-            setInput(new InputStreamReader(is, enc));
-            encoding = _enc;
-            srcCount = sc;
-        }
-        catch (Exception e) {
-            throw new XmlPullParserException(
-                "Invalid stream or encoding: " + e.toString(),
-                this,
-                e);
-        }
+    void declareNamespace(String prefix, String uri) {
+        declare(prefix, uri);
+    }
+
+    /** 
+     * Returns whether the parser decodes the input bytes itself, so 
+     * that event offsets count bytes */
+
+    boolean countsBytes() {
+        return in != null;
+    }
+
+    /** Returns the own buffers after input was parsed in place */
+
+    private final void releaseInput() {
+        if (!borrowed)
+            return;
+        if (spareChars != null)
+            srcBuf = spareChars;
+        else
+            byteBuf = spareBytes;
+        spareChars = null;
+        spareBytes = null;
+        borrowed = false;
+    }
+
+    /** 
+     * Returns the byteEncoding constant for encodings that can be 
+     * decoded without an InputStreamReader, or 0 otherwise */
+
+    static final int byteEncoding(String enc) {
+        enc = enc.toUpperCase();
+        if (enc.equals("UTF-8") || enc.equals("UTF8"))
+            return UTF_8;
+        if (enc.equals("ISO-8859-1")
+            || enc.equals("ISO8859_1")
+            || enc.equals("ISO-LATIN-1")
+            || enc.equals("LATIN1"))
+            return ISO_8859_1;
+        if (enc.equals("US-ASCII") || enc.equals("ASCII"))
+            return US_ASCII;
+        return 0;
     }
 
     public boolean getFeature(String feature) {
@@ -1109,6 +2640,10 @@ public class KXmlParser implements XmlPullParser {
             return processNsp;
         else if (isProp(feature, false, "relaxed"))
             return relaxed;
+        else if (isProp(feature, false, "lazy-attributes"))
+            return lazyAttributes;
+        else if (isProp(feature, false, "raw-skip"))
+            return rawSkip;
         else
             return false;
     }
@@ -1117,10 +2652,16 @@ public class KXmlParser implements XmlPullParser {
         return encoding;
     }
 
+    /** 
+     * Defines an entity for the current input. The predefined entities
+     * amp, apos, gt, lt and quot cannot be redefined. */
+
     public void defineEntityReplacementText(String entity, String value)
         throws XmlPullParserException {
-        if (entityMap == null)
+        if (reader == null && in == null && !borrowed && feed == null)
             throw new RuntimeException("entity replacement text must be defined after setInput!");
+        if (entityMap == null)
+            entityMap = new Hashtable();
         entityMap.put(entity, value);
     }
 
@@ -1129,8 +2670,14 @@ public class KXmlParser implements XmlPullParser {
             return version;
         if (isProp(property, true, "xmldecl-standalone"))
             return standalone;
+		if (isProp(property, true, "symbol-table"))
+			return symbols;
+		if (isProp(property, true, "text-chunk-size"))
+			return new Integer(textChunkSize);
 		if (isProp(property, true, "location"))            
-			return location != null ? location : reader.toString();
+			return location != null
+				? location
+				: reader != null ? reader.toString() : in != null ? in.toString() : null;
         return null;
     }
 
@@ -1155,15 +2702,14 @@ public class KXmlParser implements XmlPullParser {
         if ("xmlns".equals(prefix))
             return "http://www.w3.org/2000/xmlns/";
 
-        for (int i = (getNamespaceCount(depth) << 1) - 2; i >= 0; i -= 2) {
-            if (prefix == null) {
-                if (nspStack[i] == null)
-                    return nspStack[i + 1];
-            }
-            else if (prefix.equals(nspStack[i]))
-                return nspStack[i + 1];
+        int j;
+        if (prefix == null)
+            j = defaultBinding;
+        else {
+            int slot = prefixSlot(prefix, false);
+            j = slot == -1 ? -1 : prefixBinding[slot];
         }
-        return null;
+        return j == -1 ? null : nspStack[j + 1];
     }
 
     public int getDepth() {
@@ -1193,7 +2739,13 @@ public class KXmlParser implements XmlPullParser {
                 if (attributes[i + 1] != null)
                     buf.append(
                         "{" + attributes[i] + "}" + attributes[i + 1] + ":");
-                buf.append(attributes[i + 2] + "='" + attributes[i + 3] + "'");
+                buf.append(attributes[i + 2] + "='");
+                int len = attributeSpans[(i >> 1) + 1];
+                if (len < 0)
+                    buf.append(txtBuf, attributeSpans[i >> 1], ~len);
+                else
+                    buf.append(attributeValue(i >> 2));
+                buf.append('\'');
             }
 
             buf.append('>');
@@ -1210,6 +2762,7 @@ public class KXmlParser implements XmlPullParser {
             buf.append(text);
         }
 
+		updatePosition();
 		buf.append("@"+line + ":" + column);
 		if(location != null){
 			buf.append(" in ");
@@ -1219,17 +2772,39 @@ public class KXmlParser implements XmlPullParser {
 			buf.append(" in ");
 			buf.append(reader.toString());
 		}
+		else if(in != null){
+			buf.append(" in ");
+			buf.append(in.toString());
+		}
         return buf.toString();
     }
 
     public int getLineNumber() {
+        updatePosition();
         return line;
     }
 
     public int getColumnNumber() {
+        updatePosition();
         return column;
     }
 
+    /** 
+     * Returns the offset of the start of the current event in the input.
+     * For input streams in UTF-8, ISO-8859-1 or US-ASCII, which are 
+     * decoded by the parser itself, the offset is in bytes; otherwise it
+     * counts chars. For next(), ignorable events skipped before the 
+     * current event are not included. After malformed UTF-8 input, byte
+     * offsets may be inexact. Input restarted with OffsetIndex.restart()
+     * keeps counting from the start of the document. */
+
+    public long getEventOffset() {
+        updatePosition();
+        return inputBase
+            + eventStart
+            + (in != null ? offsetBase + eventExtra : 0);
+    }
+
     public boolean isWhitespace() throws XmlPullParserException {
         if (type != TEXT && type != IGNORABLE_WHITESPACE && type != CDSECT)
             exception(ILLEGAL_TYPE);
@@ -1258,6 +2833,43 @@ public class KXmlParser implements XmlPullParser {
         return null;
     }
 
+    /** 
+     * Returns the text of the current TEXT, CDSECT or 
+     * IGNORABLE_WHITESPACE event as int, parsed directly from the text 
+     * buffer. Surrounding whitespace is ignored; a NumberFormatException
+     * is thrown if the text is not a decimal int. */
+
+    public int getTextAsInt() throws XmlPullParserException {
+        checkNumberText();
+        return (int) parseLong(
+            txtBuf,
+            0,
+            txtPos,
+            Integer.MIN_VALUE,
+            Integer.MAX_VALUE);
+    }
+
+    /** Like getTextAsInt(), for long values */
+
+    public long getTextAsLong() throws XmlPullParserException {
+        checkNumberText();
+        return parseLong(txtBuf, 0, txtPos, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** 
+     * Like getTextAsInt(), for double values in the syntax of 
+     * Double.parseDouble() */
+
+    public double getTextAsDouble() throws XmlPullParserException {
+        checkNumberText();
+        return parseDouble(txtBuf, 0, txtPos);
+    }
+
+    private final void checkNumberText() throws XmlPullParserException {
+        if (type != TEXT && type != CDSECT && type != IGNORABLE_WHITESPACE)
+            exception(ILLEGAL_TYPE);
+    }
+
     public String getNamespace() {
         return namespace;
     }
@@ -1309,18 +2921,183 @@ public class KXmlParser implements XmlPullParser {
     public String getAttributeValue(int index) {
         if (index >= attributeCount)
             throw new IndexOutOfBoundsException();
-        return attributes[(index << 2) + 3];
+        return attributeValue(index);
+    }
+
+    /**
+     * Returns the characters of the attribute value with the given index
+     * without creating a string, in the same way as getTextCharacters.
+     * poslen[0] receives the start offset and poslen[1] the length of the
+     * value. The returned array is owned by the parser; its contents are
+     * only valid until the next call to next() or nextToken().
+     */
+
+    public char[] getAttributeValueCharacters(int index, int[] poslen) {
+        if (index >= attributeCount)
+            throw new IndexOutOfBoundsException();
+        int j = index << 1;
+        if (attributeSpans[j + 1] < 0)
+            resolveAttribute(j);
+        if (attributeSpans[j] == -1) {
+            String value = attributes[(index << 2) + 3];
+            poslen[0] = 0;
+            poslen[1] = value.length();
+            return value.toCharArray();
+        }
+        poslen[0] = attributeSpans[j];
+        poslen[1] = attributeSpans[j + 1];
+        return txtBuf;
     }
 
     public String getAttributeValue(String namespace, String name) {
+        int index = getAttributeIndex(namespace, name);
+        return index == -1 ? null : attributeValue(index);
+    }
+
+    /** 
+     * Returns the index of the attribute with the given namespace and 
+     * local name in the current start tag, or -1 if there is none. A 
+     * null namespace matches any namespace. For start tags with many 
+     * attributes, the lookup uses a hash table built on first use. */
+
+    public int getAttributeIndex(String namespace, String name) {
+
+        if (attributeCount > ATTRIBUTE_HASH_THRESHOLD) {
+            if (!attributeHashed)
+                hashAttributes();
+
+            // the last matching attribute, as for the linear scan
+            int[] table = attributeHash;
+            int mask = table.length - 1;
+            int found = -1;
+
+            for (int slot = hash(name) & mask;
+                table[slot] != 0;
+                slot = (slot + 1) & mask) {
+                int index = table[slot] - 1;
+                int i = index << 2;
+                // the namespace is null for undefined prefixes in relaxed mode
+                if (index > found
+                    && attributes[i + 2].equals(name)
+                    && (namespace == null || namespace.equals(attributes[i])))
+                    found = index;
+            }
+            return found;
+        }
 
         for (int i = (attributeCount << 2) - 4; i >= 0; i -= 4) {
             if (attributes[i + 2].equals(name)
                 && (namespace == null || attributes[i].equals(namespace)))
-                return attributes[i + 3];
+                return i >> 2;
         }
 
-        return null;
+        return -1;
+    }
+
+    private final void hashAttributes() {
+        int mask = clearAttributeHash();
+        for (int index = 0; index < attributeCount; index++) {
+            int slot = hash(attributes[(index << 2) + 2]) & mask;
+            while (attributeHash[slot] != 0)
+                slot = (slot + 1) & mask;
+            attributeHash[slot] = index + 1;
+        }
+
+        attributeHashed = true;
+    }
+
+    /** 
+     * Empties attributeHash, growing it to at least twice the attribute
+     * count, and returns the mask for its slots */
+
+    private final int clearAttributeHash() {
+        int size = attributeHash.length;
+        while (size < attributeCount << 1)
+            size <<= 1;
+
+        if (size > attributeHash.length)
+            attributeHash = new int[size];
+        else
+            for (int i = 0; i < size; i++)
+                attributeHash[i] = 0;
+
+        return size - 1;
+    }
+
+    private static final int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** 
+     * Returns the value of the attribute with the given index as int,
+     * parsed directly from the parser buffer without creating a string.
+     * Surrounding whitespace is ignored; a NumberFormatException is 
+     * thrown if the value is not a decimal int. */
+
+    public int getAttributeInt(int index) {
+        char[] buf = attributeChars(index);
+        return (int) parseLong(
+            buf,
+            numberSpan[0],
+            numberSpan[1],
+            Integer.MIN_VALUE,
+            Integer.MAX_VALUE);
+    }
+
+    /** Like getAttributeInt(int), for long values */
+
+    public long getAttributeLong(int index) {
+        char[] buf = attributeChars(index);
+        return parseLong(
+            buf,
+            numberSpan[0],
+            numberSpan[1],
+            Long.MIN_VALUE,
+            Long.MAX_VALUE);
+    }
+
+    /** 
+     * Like getAttributeInt(int), for double values in the syntax of 
+     * Double.parseDouble() */
+
+    public double getAttributeDouble(int index) {
+        char[] buf = attributeChars(index);
+        return parseDouble(buf, numberSpan[0], numberSpan[1]);
+    }
+
+    /** 
+     * Returns the value of the given attribute as int, or dflt if the
+     * element has no such attribute; see getAttributeInt(int) */
+
+    public int getAttributeInt(String namespace, String name, int dflt) {
+        int index = getAttributeIndex(namespace, name);
+        return index == -1 ? dflt : getAttributeInt(index);
+    }
+
+    /** Like getAttributeInt(String, String, int), for long values */
+
+    public long getAttributeLong(String namespace, String name, long dflt) {
+        int index = getAttributeIndex(namespace, name);
+        return index == -1 ? dflt : getAttributeLong(index);
+    }
+
+    /** Like getAttributeInt(String, String, int), for double values */
+
+    public double getAttributeDouble(
+        String namespace,
+        String name,
+        double dflt) {
+        int index = getAttributeIndex(namespace, name);
+        return index == -1 ? dflt : getAttributeDouble(index);
+    }
+
+    /** 
+     * Returns the chars of the attribute value with the given index, 
+     * with start and length in numberSpan */
+
+    private final char[] attributeChars(int index) {
+        return getAttributeValueCharacters(index, numberSpan);
     }
 
     public int getEventType() throws XmlPullParserException {
@@ -1329,19 +3106,52 @@ public class KXmlParser implements XmlPullParser {
 
     public int next() throws XmlPullParserException, IOException {
 
-        txtPos = 0;
-        isWhitespace = true;
-        int minType = 9999;
-        token = false;
+        int minType = pendingType;
+
+        if (minType == 0)
+            markEvent();
 
-        do {
+        if (feed != null && !feedReady())
+            return INCOMPLETE;
+
+        if (minType != 0)
+            pendingType = 0;
+        else {
+            txtPos = 0;
+            isWhitespace = true;
+            minType = 9999;
+            token = false;
+        }
+
+        while (minType > ENTITY_REF // ignorable
+            || (minType >= TEXT && peekType() >= TEXT)) {
+
+            // the event starts with the first piece that is not ignored
+
+            if (minType > ENTITY_REF)
+                markEvent();
             nextImpl();
             if (type < minType)
                 minType = type;
             //	    if (curr <= TEXT) type = curr; 
+
+            if (textChunkSize != 0
+                && minType >= TEXT
+                && minType <= ENTITY_REF
+                && consumed + srcPos >= chunkLimit)
+                break;
+
+            // continue later where the text might go on
+
+            if (minType >= TEXT && feed != null) {
+                if (minType > ENTITY_REF)
+                    markEvent();
+                if (!feedReady()) {
+                    pendingType = minType;
+                    return INCOMPLETE;
+                }
+            }
         }
-        while (minType > ENTITY_REF // ignorable
-            || (minType >= TEXT && peekType() >= TEXT));
 
         type = minType;
         if (type > TEXT)
@@ -1352,6 +3162,14 @@ public class KXmlParser implements XmlPullParser {
 
     public int nextToken() throws XmlPullParserException, IOException {
 
+        markEvent();
+
+        if (feed != null) {
+            pendingType = 0;
+            if (!feedReady())
+                return INCOMPLETE;
+        }
+
         isWhitespace = true;
         txtPos = 0;
 
@@ -1395,7 +3213,14 @@ public class KXmlParser implements XmlPullParser {
 
         if (type == TEXT) {
             result = getText();
-            next();
+            // joins chunks, see textChunkSize
+            if (next() == TEXT) {
+                StringBuffer buf = new StringBuffer(result);
+                do
+                    buf.append(getText());
+                while (next() == TEXT);
+                result = buf.toString();
+            }
         }
         else
             result = "";
@@ -1406,12 +3231,358 @@ public class KXmlParser implements XmlPullParser {
         return result;
     }
 
+    /** 
+     * Decodes the base64 content of the current TEXT or CDSECT event 
+     * into buf at off and returns the number of bytes written, at most
+     * the text length * 3 / 4. Whitespace is ignored. The text has to 
+     * consist of complete groups of four chars; text delivered in 
+     * chunks (see text-chunk-size) is decoded with nextBase64(). */
+
+    public int getTextBase64(byte[] buf, int off)
+        throws XmlPullParserException {
+        return getTextBinary(false, buf, off);
+    }
+
+    /** 
+     * Decodes the hex content of the current TEXT or CDSECT event into 
+     * buf at off and returns the number of bytes written, at most half 
+     * the text length. Whitespace is ignored. */
+
+    public int getTextHex(byte[] buf, int off)
+        throws XmlPullParserException {
+        return getTextBinary(true, buf, off);
+    }
+
+    /** 
+     * Like nextText(), but decodes the base64 text content of the 
+     * current element into out, without creating a String. Text 
+     * chunks (see text-chunk-size) are decoded one by one, so the 
+     * content of the element is never held completely. Returns the 
+     * number of bytes written. */
+
+    public int nextBase64(OutputStream out)
+        throws XmlPullParserException, IOException {
+        return nextBinary(false, out);
+    }
+
+    /** Like nextBase64(), for hex content */
+
+    public int nextHex(OutputStream out)
+        throws XmlPullParserException, IOException {
+        return nextBinary(true, out);
+    }
+
+    /** 
+     * Like nextText(), but returns the text content of the current 
+     * element as int without creating a string; see getTextAsInt() */
+
+    public int nextInt() throws XmlPullParserException, IOException {
+        nextNumberText();
+        int value =
+            (int) parseLong(
+                txtBuf,
+                0,
+                txtPos,
+                Integer.MIN_VALUE,
+                Integer.MAX_VALUE);
+        nextNumberEnd();
+        return value;
+    }
+
+    /** Like nextInt(), for long values */
+
+    public long nextLong() throws XmlPullParserException, IOException {
+        nextNumberText();
+        long value = parseLong(txtBuf, 0, txtPos, Long.MIN_VALUE, Long.MAX_VALUE);
+        nextNumberEnd();
+        return value;
+    }
+
+    /** Like nextInt(), for double values */
+
+    public double nextDouble() throws XmlPullParserException, IOException {
+        nextNumberText();
+        double value = parseDouble(txtBuf, 0, txtPos);
+        nextNumberEnd();
+        return value;
+    }
+
+    /** 
+     * Moves to the text of the current element, leaving it in txtBuf.
+     * An empty element leaves an empty txtBuf. */
+
+    private final void nextNumberText()
+        throws XmlPullParserException, IOException {
+
+        if (type != START_TAG)
+            exception("precondition: START_TAG");
+
+        // a number is parsed from a single event, not from chunks
+        int size = textChunkSize;
+        textChunkSize = 0;
+        try {
+            next();
+        }
+        finally {
+            textChunkSize = size;
+        }
+
+        if (type == END_TAG)
+            txtPos = 0;
+        else if (type != TEXT)
+            exception("END_TAG expected");
+    }
+
+    private final void nextNumberEnd()
+        throws XmlPullParserException, IOException {
+        if (type == TEXT)
+            next();
+        if (type != END_TAG)
+            exception("END_TAG expected");
+    }
+
+    /** 
+     * Parses a decimal number between min and max from the given chars,
+     * ignoring surrounding whitespace. */
+
+    private static final long parseLong(
+        char[] buf,
+        int start,
+        int len,
+        long min,
+        long max) {
+
+        int p = start;
+        int end = start + len;
+
+        while (p < end && isSpace(buf[p]))
+            p++;
+        while (end > p && isSpace(buf[end - 1]))
+            end--;
+
+        int i = p;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+'))
+            negative = buf[i++] == '-';
+        if (i == end)
+            throw new NumberFormatException(new String(buf, p, end - p));
+
+        // accumulated negatively, so that min fits for long
+        long limit = negative ? min : -max;
+        long value = 0;
+
+        while (i < end) {
+            int d = buf[i++] - '0';
+            if (d < 0 || d > 9 || value < (limit + d) / 10)
+                throw new NumberFormatException(new String(buf, p, end - p));
+            value = value * 10 - d;
+        }
+
+        return negative ? value : -value;
+    }
+
+    /** 
+     * Parses a double from the given chars, ignoring surrounding 
+     * whitespace. Decimal numbers with up to 15 significant digits and 
+     * a small exponent are converted exactly with a single 
+     * multiplication or division; anything else is left to 
+     * Double.parseDouble(). */
+
+    private static final double parseDouble(char[] buf, int start, int len) {
+
+        int p = start;
+        int end = start + len;
+
+        while (p < end && isSpace(buf[p]))
+            p++;
+        while (end > p && isSpace(buf[end - 1]))
+            end--;
+
+        int i = p;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+'))
+            negative = buf[i++] == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean dot = false;
+        boolean any = false;
+
+        while (i < end) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0)
+                    digits++;
+                if (dot)
+                    exponent--;
+                any = true;
+            }
+            else if (c == '.' && !dot)
+                dot = true;
+            else
+                break;
+            i++;
+        }
+
+        if (any && digits <= 15 && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+'))
+                negativeExp = buf[i++] == '-';
+            int exp = 0;
+            int expStart = i;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9' && exp < 1000)
+                exp = exp * 10 + (buf[i++] - '0');
+            if (i == expStart)
+                any = false;
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        if (any && digits <= 15 && i == end) {
+            if (mantissa == 0)
+                return negative ? -0.0 : 0.0;
+            if (exponent >= -22 && exponent <= 22) {
+                double value =
+                    exponent < 0
+                        ? mantissa / POWERS_OF_TEN[-exponent]
+                        : mantissa * POWERS_OF_TEN[exponent];
+                return negative ? -value : value;
+            }
+        }
+
+        return Double.parseDouble(new String(buf, p, end - p));
+    }
+
+    private static final boolean isSpace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private final int getTextBinary(boolean hex, byte[] buf, int off)
+        throws XmlPullParserException {
+
+        if (type != TEXT && type != CDSECT)
+            exception(ILLEGAL_TYPE);
+
+        binBits = 0;
+        binChars = 0;
+        binPad = 0;
+
+        int count = decodeBinary(hex, buf, off);
+        if (binChars != 0)
+            exception(hex ? "odd number of hex digits" : "incomplete base64 group");
+        return count;
+    }
+
+    private final int nextBinary(boolean hex, OutputStream out)
+        throws XmlPullParserException, IOException {
+
+        if (type != START_TAG)
+            exception("precondition: START_TAG");
+
+        binBits = 0;
+        binChars = 0;
+        binPad = 0;
+
+        int count = 0;
+        byte[] buf = null;
+
+        while (next() == TEXT) {
+            // a group started in the previous chunk may complete here
+            if (buf == null || buf.length < txtPos + 2)
+                buf = new byte[txtPos + 2];
+            int n = decodeBinary(hex, buf, 0);
+            out.write(buf, 0, n);
+            count += n;
+        }
+
+        if (type != END_TAG)
+            exception("END_TAG expected");
+        if (binChars != 0)
+            exception(hex ? "odd number of hex digits" : "incomplete base64 group");
+
+        return count;
+    }
+
+    /** 
+     * Decodes the text in txtBuf into buf at off, continuing a group 
+     * left incomplete by the previous call. Returns the number of 
+     * bytes written. */
+
+    private final int decodeBinary(boolean hex, byte[] buf, int off)
+        throws XmlPullParserException {
+
+        char[] cs = txtBuf;
+        int len = txtPos;
+        int bits = binBits;
+        int n = binChars;
+        int pad = binPad;
+        int o = off;
+
+        for (int i = 0; i < len; i++) {
+            char c = cs[i];
+            if (c == ' ' || c == '\n' || c == '\t' || c == '\r')
+                continue;
+
+            if (hex) {
+                int v;
+                if (c >= '0' && c <= '9')
+                    v = c - '0';
+                else if (c >= 'a' && c <= 'f')
+                    v = c - 'a' + 10;
+                else if (c >= 'A' && c <= 'F')
+                    v = c - 'A' + 10;
+                else {
+                    exception("illegal hex char: " + c);
+                    v = 0;
+                }
+                bits = (bits << 4) | v;
+                if (++n == 2) {
+                    buf[o++] = (byte) bits;
+                    bits = 0;
+                    n = 0;
+                }
+            }
+            else {
+                int v = c < 128 ? BASE64[c] : -1;
+                // padding may only end a group, after two or three digits
+                if (c == '=' && n >= 2) {
+                    pad++;
+                    v = 0;
+                }
+                else if (v == -1 || pad > 0)
+                    exception("illegal base64 char: " + c);
+
+                bits = (bits << 6) | v;
+                if (++n == 4) {
+                    buf[o++] = (byte) (bits >> 16);
+                    if (pad < 2)
+                        buf[o++] = (byte) (bits >> 8);
+                    if (pad < 1)
+                        buf[o++] = (byte) bits;
+                    bits = 0;
+                    n = 0;
+                }
+            }
+        }
+
+        binBits = bits;
+        binChars = n;
+        binPad = pad;
+        return o - off;
+    }
+
     public void setFeature(String feature, boolean value)
         throws XmlPullParserException {
         if (XmlPullParser.FEATURE_PROCESS_NAMESPACES.equals(feature))
             processNsp = value;
         else if (isProp(feature, false, "relaxed"))
             relaxed = value;
+        else if (isProp(feature, false, "lazy-attributes"))
+            lazyAttributes = value;
+        else if (isProp(feature, false, "raw-skip"))
+            rawSkip = value;
         else
             exception("unsupported feature: " + feature);
     }
@@ -1420,6 +3591,14 @@ public class KXmlParser implements XmlPullParser {
         throws XmlPullParserException {
         if(isProp(property, true, "location"))
         	location = value;
+        else if(isProp(property, true, "symbol-table"))
+        	symbols = value != null ? (SymbolTable) value : new SymbolTable();
+        else if(isProp(property, true, "text-chunk-size")) {
+            int size = value != null ? ((Integer) value).intValue() : 0;
+            if (size != 0 && size < 16)
+                throw new IllegalArgumentException("text chunk size < 16");
+            textChunkSize = size;
+        }
         else
 	        throw new XmlPullParserException("unsupported property: " + property);
     }
@@ -1432,11 +3611,23 @@ public class KXmlParser implements XmlPullParser {
 
     //	Implementation copied from Alek's mail... 
 
+    /** 
+     * Skips to the end tag matching the current start tag. If the 
+     * raw-skip feature is set, the content is not tokenized: no events
+     * are built for it and it is not checked for well-formedness. */
+
     public void skipSubTree() throws XmlPullParserException, IOException {
         require(START_TAG, null, null);
+        if (rawSkip && !degenerated && feed == null) {
+            skipRaw();
+            next();
+            return;
+        }
         int level = 1;
         while (level > 0) {
             int eventType = next();
+            if (eventType == INCOMPLETE)
+                exception(UNEXPECTED_EOF);
             if (eventType == END_TAG) {
                 --level;
             }
@@ -1445,4 +3636,64 @@ public class KXmlParser implements XmlPullParser {
             }
         }
     }
+
+    /** 
+     * The bytes supplied to feed(). Reads return -1 while no bytes are 
+     * available; feedReady() makes sure that this is only taken for the
+     * end of input once ended is set. */
+
+    static final class FeedInput extends InputStream {
+
+        byte[] buf = new byte[256];
+        int pos;
+        int count;
+        boolean ended;
+
+        void append(byte[] b, int off, int len) {
+            if (count + len > buf.length) {
+                byte[] dest = buf;
+                if (count - pos + len > buf.length)
+                    dest = new byte[Math.max(buf.length * 2, count - pos + len)];
+                System.arraycopy(buf, pos, dest, 0, count - pos);
+                buf = dest;
+                count -= pos;
+                pos = 0;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        /** 
+         * Returns true if the encoding detection of setInput can read 
+         * what it needs: four bytes, and the xml declaration if any. */
+
+        boolean sniffable() {
+            if (count - pos < 4)
+                return false;
+            if (buf[pos] != '<' || buf[pos + 1] != '?')
+                return true;
+            for (int i = pos + 2; i < count; i++)
+                if (buf[i] == '>')
+                    return true;
+            return false;
+        }
+
+        public int read() {
+            return pos < count ? buf[pos++] & 0x0ff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (pos == count)
+                return -1;
+            if (len > count - pos)
+                len = count - pos;
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        public int available() {
+            return count - pos;
+        }
+    }
 }
@@ -0,0 +1,105 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+/** 
+ * A pool of reusable KXmlParser instances, for applications that parse
+ * many small documents and want to avoid the setup cost of a new parser
+ * per document. 
+ * <p>
+ * Parsers are obtained with get() and handed back with release() when
+ * the document is done. Released parsers are reset: the input is 
+ * dropped, all features and properties except for the symbol table 
+ * are set back to their defaults, and buffers that grew beyond the 
+ * configured limit are replaced by small ones, so that a single large 
+ * document does not pin memory in the pool. The pool is not bound to a
+ * thread; it may be shared by any number of threads. */
+
+public class KXmlParserPool {
+
+    private KXmlParser[] idle;
+    private int idleCount;
+    private int maxBuffer;
+
+    private int hits;
+    private int misses;
+
+    /** 
+     * Creates a pool keeping up to 16 idle parsers, each retaining 
+     * buffers of at most 65536 chars or entries. */
+
+    public KXmlParserPool() {
+        this(16, 65536);
+    }
+
+    public KXmlParserPool(int maxIdle, int maxBuffer) {
+        this.idle = new KXmlParser[maxIdle];
+        this.maxBuffer = maxBuffer;
+    }
+
+    /** 
+     * Returns an idle parser from the pool, or a new one if the pool is
+     * empty. setInput must be called before the parser is used. */
+
+    public KXmlParser get() {
+        synchronized (this) {
+            if (idleCount > 0) {
+                hits++;
+                KXmlParser parser = idle[--idleCount];
+                idle[idleCount] = null;
+                return parser;
+            }
+            misses++;
+        }
+        return new KXmlParser();
+    }
+
+    /** 
+     * Resets the given parser and returns it to the pool. The parser 
+     * must not be used by the caller any more. If the pool is full, the
+     * parser is dropped. */
+
+    public void release(KXmlParser parser) {
+        parser.recycle(maxBuffer);
+        synchronized (this) {
+            if (idleCount < idle.length)
+                idle[idleCount++] = parser;
+        }
+    }
+
+    /** Returns the number of get() calls served from the pool */
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /** Returns the number of get() calls that created a new parser */
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /** Returns the number of parsers currently waiting in the pool */
+
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+}
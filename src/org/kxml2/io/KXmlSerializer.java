@@ -36,13 +36,206 @@ public class KXmlSerializer implements XmlSerializer {
 
     private String[] elementStack = new String[12];
     //nsp/prefix/name
+    private XmlName[] nameStack = new XmlName[4];
+    //token of each open element, or null
     private int[] nspCounts = new int[4];
     private String[] nspStack = new String[8];
     //prefix/nsp; both empty are ""
+
+    // Hash chains over the first bound namespace bindings in nspStack,
+    // used when more than NAMESPACE_HASH_THRESHOLD bindings are in 
+    // scope. A bucket holds the latest binding of the prefixes or 
+    // namespaces hashed to it, plus one, and each binding links to the
+    // binding that was in its bucket before. Bindings are only added 
+    // and removed at the top, so removing them restores the buckets; 
+    // see scope().
+    private static final int NAMESPACE_HASH_THRESHOLD = 8;
+    private int bound;
+    private int[] prefixBuckets = new int[8];
+    private int[] namespaceBuckets = new int[8];
+    private int[] prefixLinks = new int[8];
+    private int[] namespaceLinks = new int[8];
+    /** Generated prefixes "n0", "n1", ... */
+    private String[] autoPrefixes = new String[4];
     private boolean[] indent = new boolean[4];
     private boolean unicode;
     private String encoding;
 
+    /** Output not yet passed to the writer */
+    private char[] buf;
+    private int bufPos;
+    /** 
+     * In UTF-8, ISO-8859-1 and US-ASCII, the buffered output is encoded
+     * into bytes and written to out instead of writer; see 
+     * KXmlParser.byteEncoding() */
+    private OutputStream out;
+    private int byteEncoding;
+    private byte[] bytes;
+    /** A high surrogate at the end of the last flushed output, or 0 */
+    private char high;
+    /** Strings are copied here in pieces for escaping */
+    private char[] chars = new char[256];
+
+    private static final boolean[] TEXT_ESCAPES = escapes(-1);
+    private static final boolean[] QUOT_ESCAPES = escapes('"');
+    private static final boolean[] APOS_ESCAPES = escapes('\'');
+
+    /** Creates a serializer with an output buffer of 8192 chars. */
+
+    public KXmlSerializer() {
+        this(8192);
+    }
+
+    /** 
+     * Creates a serializer that collects up to bufferSize chars before
+     * passing them to the writer in a single call. Buffered output 
+     * reaches the writer on flush() and endDocument(). For output 
+     * streams in UTF-8, ISO-8859-1 or US-ASCII, the serializer encodes
+     * the chars itself instead of using an OutputStreamWriter. */
+
+    public KXmlSerializer(int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException();
+        buf = new char[bufferSize];
+    }
+
+    private final void write(char c) throws IOException {
+        if (bufPos == buf.length)
+            flushBuffer();
+        buf[bufPos++] = c;
+    }
+
+    private final void write(String s) throws IOException {
+        int len = s.length();
+        if (len > buf.length - bufPos) {
+            flushBuffer();
+            if (len >= buf.length && out == null) {
+                writer.write(s);
+                return;
+            }
+        }
+        for (int pos = 0;;) {
+            int n = Math.min(len - pos, buf.length - bufPos);
+            s.getChars(pos, pos + n, buf, bufPos);
+            bufPos += n;
+            pos += n;
+            if (pos == len)
+                return;
+            flushBuffer();
+        }
+    }
+
+    private final void write(char[] text, int start, int len)
+        throws IOException {
+        if (len > buf.length - bufPos) {
+            flushBuffer();
+            if (len >= buf.length && out == null) {
+                writer.write(text, start, len);
+                return;
+            }
+        }
+        for (int end = start + len;;) {
+            int n = Math.min(end - start, buf.length - bufPos);
+            System.arraycopy(text, start, buf, bufPos, n);
+            bufPos += n;
+            start += n;
+            if (start == end)
+                return;
+            flushBuffer();
+        }
+    }
+
+    /** Passes the buffered output to the writer or output stream */
+
+    private final void flushBuffer() throws IOException {
+        if (bufPos > 0) {
+            if (out != null)
+                writeBytes();
+            else
+                writer.write(buf, 0, bufPos);
+            bufPos = 0;
+        }
+    }
+
+    /** 
+     * Encodes the buffered output and writes it to out. Runs of chars
+     * below 128, or 256 in ISO-8859-1, are copied as single bytes. 
+     * Chars that cannot be encoded and unpaired surrogates are 
+     * replaced by '?', as by the Java encoders. */
+
+    private final void writeBytes() throws IOException {
+        int max = byteEncoding == KXmlParser.ISO_8859_1 ? 0x100 : 0x80;
+        int i = 0;
+        int n = 0;
+
+        if (high != 0) {
+            char c = buf[0];
+            if (c >= 0xdc00 && c <= 0xdfff) {
+                n = encode(((high - 0xd800) << 10) + (c - 0xdc00) + 0x10000, 0);
+                i = 1;
+            }
+            else
+                bytes[n++] = '?';
+            high = 0;
+        }
+
+        while (true) {
+            int end = Math.min(bufPos, i + bytes.length - 4 - n);
+            while (i < end) {
+                char c = buf[i];
+                if (c >= max)
+                    break;
+                bytes[n++] = (byte) c;
+                i++;
+            }
+            if (i == bufPos)
+                break;
+            if (n >= bytes.length - 4) {
+                out.write(bytes, 0, n);
+                n = 0;
+                continue;
+            }
+
+            char c = buf[i++];
+            if (c < 0xd800 || c > 0xdfff)
+                n = encode(c, n);
+            else if (c >= 0xdc00)
+                bytes[n++] = '?';
+            else if (i == bufPos)
+                high = c;
+            else if (buf[i] >= 0xdc00 && buf[i] <= 0xdfff)
+                n = encode(((c - 0xd800) << 10) + (buf[i++] - 0xdc00) + 0x10000, n);
+            else
+                bytes[n++] = '?';
+        }
+        out.write(bytes, 0, n);
+    }
+
+    /** 
+     * Encodes a code point that is not written as a single byte into 
+     * bytes at n, returning the new number of bytes. */
+
+    private final int encode(int c, int n) {
+        if (byteEncoding != KXmlParser.UTF_8)
+            bytes[n++] = '?';
+        else if (c < 0x800) {
+            bytes[n++] = (byte) (0xc0 | (c >> 6));
+            bytes[n++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if (c < 0x10000) {
+            bytes[n++] = (byte) (0xe0 | (c >> 12));
+            bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[n++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else {
+            bytes[n++] = (byte) (0xf0 | (c >> 18));
+            bytes[n++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+            bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[n++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return n;
+    }
+
     private final void check(boolean close) throws IOException {
         if (!pending)
             return;
@@ -60,17 +253,17 @@ public class KXmlSerializer implements XmlSerializer {
         for (int i = nspCounts[depth - 1];
             i < nspCounts[depth];
             i++) {
-            writer.write(' ');
-            writer.write("xmlns");
+            write(' ');
+            write("xmlns");
             if (!"".equals(nspStack[i * 2])) {
-                writer.write(':');
-                writer.write(nspStack[i * 2]);
+                write(':');
+                write(nspStack[i * 2]);
             }
             else if ("".equals(getNamespace()) && !"".equals(nspStack[i * 2 + 1]))
                 throw new IllegalStateException("Cannot set default namespace for elements in no namespace");
-            writer.write("=\"");
+            write("=\"");
             writeEscaped(nspStack[i * 2 + 1], '"');
-            writer.write('"');
+            write('"');
         }
 
         if (nspCounts.length <= depth + 1) {
@@ -82,63 +275,106 @@ public class KXmlSerializer implements XmlSerializer {
         nspCounts[depth + 1] = nspCounts[depth];
         //   nspCounts[depth + 2] = nspCounts[depth];
 
-        writer.write(close ? " />" : ">");
+        write(close ? " />" : ">");
     }
 
     private final void writeEscaped(String s, int quot)
         throws IOException {
 
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
+        int len = s.length();
+        for (int pos = 0; pos < len; pos += chars.length) {
+            int n = Math.min(len - pos, chars.length);
+            s.getChars(pos, pos + n, chars, 0);
+            writeEscaped(chars, 0, n, quot);
+        }
+    }
+
+    /** 
+     * Writes text[start..end[, escaping the chars marked in the escape
+     * table for quot, chars from 127 on unless the encoding is a 
+     * Unicode encoding, and '@'. Runs of chars that need no escaping 
+     * are copied in one go. */
+
+    private final void writeEscaped(char[] text, int start, int end, int quot)
+        throws IOException {
+
+        boolean[] escapes =
+            quot == -1
+                ? TEXT_ESCAPES
+                : quot == '"' ? QUOT_ESCAPES : APOS_ESCAPES;
+        int run = start;
+
+        for (int i = start; i < end; i++) {
+            char c = text[i];
+            if (c < 127 ? !escapes[c] : unicode)
+                continue;
+
+            if (i > run)
+                write(text, run, i - run);
+            run = i + 1;
+
             switch (c) {
-            	case '\n':
-            	case '\r':
-            	case '\t':
-            		if(quot == -1) 
-            			writer.write(c);
-            		else 
-            			writer.write("&#"+((int) c)+';');
-            		break;
                 case '&' :
-                    writer.write("&amp;");
+                    write("&amp;");
                     break;
                 case '>' :
-                    writer.write("&gt;");
+                    write("&gt;");
                     break;
                 case '<' :
-                    writer.write("&lt;");
+                    write("&lt;");
                     break;
                 case '"' :
+                    write("&quot;");
+                    break;
                 case '\'' :
-                    if (c == quot) {
-                        writer.write(
-                            c == '"' ? "&quot;" : "&apos;");
-                        break;
-                    }
+                    write("&apos;");
+                    break;
                 default :
-                	//if(c < ' ')
-					//	throw new IllegalArgumentException("Illegal control code:"+((int) c));
-
-                    if (c >= ' ' && c !='@' && (c < 127 || unicode))
-                        writer.write(c);
-                    else
-                        writer.write("&#" + ((int) c) + ";");
-
+                    write('&');
+                    write('#');
+                    writeInt(c);
+                    write(';');
             }
         }
+        if (end > run)
+            write(text, run, end - run);
+    }
+
+    /** Writes the decimal digits of a non-negative number */
+
+    private final void writeInt(int i) throws IOException {
+        if (i >= 10)
+            writeInt(i / 10);
+        write((char) ('0' + i % 10));
+    }
+
+    /** 
+     * Returns the table of chars below 127 that are escaped in text, 
+     * for quot -1, or in attribute values quoted with quot. */
+
+    private static boolean[] escapes(int quot) {
+        boolean[] escapes = new boolean[127];
+        for (int c = 0; c < ' '; c++)
+            escapes[c] = true;
+        if (quot == -1)
+            escapes['\n'] = escapes['\r'] = escapes['\t'] = false;
+        else
+            escapes[quot] = true;
+        escapes['&'] = escapes['<'] = escapes['>'] = escapes['@'] = true;
+        return escapes;
     }
 
     /*
     	private final void writeIndent() throws IOException {
-    		writer.write("\r\n");
+    		write("\r\n");
     		for (int i = 0; i < depth; i++)
-    			writer.write(' ');
+    			write(' ');
     	}*/
 
     public void docdecl(String dd) throws IOException {
-        writer.write("<!DOCTYPE");
-        writer.write(dd);
-        writer.write(">");
+        write("<!DOCTYPE");
+        write(dd);
+        write(">");
     }
 
     public void endDocument() throws IOException {
@@ -152,9 +388,9 @@ public class KXmlSerializer implements XmlSerializer {
 
     public void entityRef(String name) throws IOException {
         check(false);
-        writer.write('&');
-        writer.write(name);
-        writer.write(';');
+        write('&');
+        write(name);
+        write(';');
     }
 
     public boolean getFeature(String name) {
@@ -182,22 +418,26 @@ public class KXmlSerializer implements XmlSerializer {
         boolean create)
         throws IOException {
 
-        for (int i = nspCounts[depth + 1] * 2 - 2;
-            i >= 0;
-            i -= 2) {
-            if (nspStack[i + 1].equals(namespace)
-                && (includeDefault || !nspStack[i].equals(""))) {
-                String cand = nspStack[i];
-                for (int j = i + 2;
-                    j < nspCounts[depth + 1] * 2;
-                    j++) {
-                    if (nspStack[j].equals(cand)) {
-                        cand = null;
-                        break;
-                    }
+        int count = nspCounts[depth + 1];
+
+        if (namespace != null) {
+            if (count > NAMESPACE_HASH_THRESHOLD) {
+                scope(count);
+                for (int i =
+                    namespaceBuckets[bucket(namespace, namespaceBuckets)] - 1;
+                    i >= 0;
+                    i = namespaceLinks[i] - 1) {
+                    if (nspStack[i * 2 + 1].equals(namespace)
+                        && visible(i, includeDefault))
+                        return nspStack[i * 2];
+                }
+            }
+            else {
+                for (int i = count - 1; i >= 0; i--) {
+                    if (nspStack[i * 2 + 1].equals(namespace)
+                        && visible(i, includeDefault))
+                        return nspStack[i * 2];
                 }
-                if (cand != null)
-                    return cand;
             }
         }
 
@@ -210,17 +450,17 @@ public class KXmlSerializer implements XmlSerializer {
             prefix = "";
         else {
             do {
-                prefix = "n" + (auto++);
-                for (int i = nspCounts[depth + 1] * 2 - 2;
-                    i >= 0;
-                    i -= 2) {
-                    if (prefix.equals(nspStack[i])) {
-                        prefix = null;
-                        break;
-                    }
+                if (auto == autoPrefixes.length) {
+                    String[] hlp = new String[auto * 2];
+                    System.arraycopy(autoPrefixes, 0, hlp, 0, auto);
+                    autoPrefixes = hlp;
                 }
+                prefix = autoPrefixes[auto];
+                if (prefix == null)
+                    autoPrefixes[auto] = prefix = "n" + auto;
+                auto++;
             }
-            while (prefix == null);
+            while (binding(prefix) != -1);
         }
 
 		boolean p = pending;
@@ -230,6 +470,78 @@ public class KXmlSerializer implements XmlSerializer {
         return prefix;
     }
 
+    /** 
+     * Returns whether binding i is not shadowed by a later binding of 
+     * its prefix and, unless includeDefault is set, has a prefix. */
+
+    private final boolean visible(int i, boolean includeDefault) {
+        String prefix = nspStack[i * 2];
+        return (includeDefault || !prefix.equals(""))
+            && binding(prefix) == i;
+    }
+
+    /** Returns the index of the latest binding of prefix, or -1 */
+
+    private final int binding(String prefix) {
+        int count = nspCounts[depth + 1];
+        if (count > NAMESPACE_HASH_THRESHOLD) {
+            scope(count);
+            for (int i = prefixBuckets[bucket(prefix, prefixBuckets)] - 1;
+                i >= 0;
+                i = prefixLinks[i] - 1) {
+                if (nspStack[i * 2].equals(prefix))
+                    return i;
+            }
+        }
+        else {
+            for (int i = count - 1; i >= 0; i--) {
+                if (nspStack[i * 2].equals(prefix))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final int bucket(String key, int[] buckets) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (buckets.length - 1);
+    }
+
+    /** 
+     * Adds or removes bindings at the top of the hash chains until the
+     * first count bindings in nspStack are in them. */
+
+    private final void scope(int count) {
+        while (bound > count) {
+            bound--;
+            prefixBuckets[bucket(nspStack[bound * 2], prefixBuckets)] =
+                prefixLinks[bound];
+            namespaceBuckets[bucket(nspStack[bound * 2 + 1],
+                namespaceBuckets)] =
+                namespaceLinks[bound];
+        }
+
+        if (count > prefixLinks.length) {
+            int size = prefixLinks.length;
+            while (size < count)
+                size *= 2;
+            prefixBuckets = new int[size * 2];
+            namespaceBuckets = new int[size * 2];
+            prefixLinks = new int[size];
+            namespaceLinks = new int[size];
+            bound = 0;
+        }
+
+        while (bound < count) {
+            int b = bucket(nspStack[bound * 2], prefixBuckets);
+            prefixLinks[bound] = prefixBuckets[b];
+            prefixBuckets[b] = bound + 1;
+            b = bucket(nspStack[bound * 2 + 1], namespaceBuckets);
+            namespaceLinks[bound] = namespaceBuckets[b];
+            namespaceBuckets[b] = ++bound;
+        }
+    }
+
     public Object getProperty(String name) {
         throw new RuntimeException("Unsupported property");
     }
@@ -269,6 +581,10 @@ public class KXmlSerializer implements XmlSerializer {
         if (prefix.equals(defined))
             return;
 
+        // bindings above are replaced and must leave the hash chains
+        if (bound > nspCounts[depth + 1])
+            scope(nspCounts[depth + 1]);
+
         int pos = (nspCounts[depth + 1]++) << 1;
 
         if (nspStack.length < pos + 1) {
@@ -283,6 +599,9 @@ public class KXmlSerializer implements XmlSerializer {
 
     public void setOutput(Writer writer) {
         this.writer = writer;
+        bufPos = 0;
+        out = null;
+        high = 0;
 
         // elementStack = new String[12]; //nsp/prefix/name
         //nspCounts = new int[4];
@@ -295,6 +614,11 @@ public class KXmlSerializer implements XmlSerializer {
         nspStack[1] = "";
         nspStack[2] = "xml";
         nspStack[3] = "http://www.w3.org/XML/1998/namespace";
+        for (int i = 0; i < prefixBuckets.length; i++) {
+            prefixBuckets[i] = 0;
+            namespaceBuckets[i] = 0;
+        }
+        bound = 0;
         pending = false;
         auto = 0;
         depth = 0;
@@ -306,10 +630,20 @@ public class KXmlSerializer implements XmlSerializer {
         throws IOException {
         if (os == null)
             throw new IllegalArgumentException();
-        setOutput(
-            encoding == null
-                ? new OutputStreamWriter(os)
-                : new OutputStreamWriter(os, encoding));
+        int byteEncoding =
+            encoding == null ? 0 : KXmlParser.byteEncoding(encoding);
+        if (byteEncoding != 0) {
+            setOutput((Writer) null);
+            out = os;
+            this.byteEncoding = byteEncoding;
+            if (bytes == null)
+                bytes = new byte[Math.max(buf.length, 64)];
+        }
+        else
+            setOutput(
+                encoding == null
+                    ? new OutputStreamWriter(os)
+                    : new OutputStreamWriter(os, encoding));
         this.encoding = encoding;
         if (encoding != null
             && encoding.toLowerCase().startsWith("utf"))
@@ -320,7 +654,7 @@ public class KXmlSerializer implements XmlSerializer {
         String encoding,
         Boolean standalone)
         throws IOException {
-        writer.write("<?xml version='1.0' ");
+        write("<?xml version='1.0' ");
 
         if (encoding != null) {
             this.encoding = encoding;
@@ -329,21 +663,56 @@ public class KXmlSerializer implements XmlSerializer {
         }
 
         if (this.encoding != null) {
-            writer.write("encoding='");
-            writer.write(this.encoding);
-            writer.write("' ");
+            write("encoding='");
+            write(this.encoding);
+            write("' ");
         }
 
         if (standalone != null) {
-            writer.write("standalone='");
-            writer.write(
+            write("standalone='");
+            write(
                 standalone.booleanValue() ? "yes" : "no");
-            writer.write("' ");
+            write("' ");
         }
-        writer.write("?>");
+        write("?>");
+    }
+
+    /** 
+     * Returns a token for writing tags and attributes with the given 
+     * namespace and name through startTag(XmlName), attribute(XmlName,
+     * String) and endTag(XmlName). The token keeps the qualified name 
+     * ready for output, and endTag(XmlName) compares it by identity 
+     * instead of comparing strings. Tokens may only be used with the 
+     * serializer that created them. */
+
+    public XmlName name(String namespace, String name) {
+        if (name == null)
+            throw new IllegalArgumentException();
+        return new XmlName(this, namespace, name);
     }
 
     public XmlSerializer startTag(String namespace, String name)
+        throws IOException {
+        return startTag(namespace, name, null);
+    }
+
+    /** Writes a start tag for a token returned by name(). */
+
+    public XmlSerializer startTag(XmlName token) throws IOException {
+        checkOwner(token);
+        return startTag(token.namespace, token.name, token);
+    }
+
+    private final void checkOwner(XmlName token) {
+        if (token.owner != this)
+            throw new IllegalArgumentException(
+                "name not created by this serializer");
+    }
+
+    private final XmlSerializer startTag(
+        String namespace,
+        String name,
+        XmlName token)
         throws IOException {
         check(false);
 
@@ -351,9 +720,9 @@ public class KXmlSerializer implements XmlSerializer {
         //            namespace = "";
 
         if (indent[depth]) {
-            writer.write("\r\n");
+            write("\r\n");
             for (int i = 0; i < depth; i++)
-                writer.write("  ");
+                write("  ");
         }
 
         int esp = depth * 3;
@@ -364,6 +733,13 @@ public class KXmlSerializer implements XmlSerializer {
             elementStack = hlp;
         }
 
+        if (nameStack.length <= depth) {
+            XmlName[] hlp = new XmlName[depth + 4];
+            System.arraycopy(nameStack, 0, hlp, 0, depth);
+            nameStack = hlp;
+        }
+        nameStack[depth] = token;
+
         String prefix =
             namespace == null
                 ? ""
@@ -383,13 +759,19 @@ public class KXmlSerializer implements XmlSerializer {
         elementStack[esp++] = prefix;
         elementStack[esp] = name;
 
-        writer.write('<');
-        if (!"".equals(prefix)) {
-            writer.write(prefix);
-            writer.write(':');
+        if (token != null) {
+            if (token.prefix != prefix)
+                token.setPrefix(prefix);
+            write(token.startTag, 0, token.startTag.length);
+        }
+        else {
+            write('<');
+            if (!"".equals(prefix)) {
+                write(prefix);
+                write(':');
+            }
+            write(name);
         }
-
-        writer.write(name);
 
         pending = true;
 
@@ -401,6 +783,23 @@ public class KXmlSerializer implements XmlSerializer {
         String name,
         String value)
         throws IOException {
+        return attribute(namespace, name, value, null);
+    }
+
+    /** Writes an attribute for a token returned by name(). */
+
+    public XmlSerializer attribute(XmlName token, String value)
+        throws IOException {
+        checkOwner(token);
+        return attribute(token.namespace, token.name, value, token);
+    }
+
+    private final XmlSerializer attribute(
+        String namespace,
+        String name,
+        String value,
+        XmlName token)
+        throws IOException {
         if (!pending)
             throw new IllegalStateException("illegal position for attribute");
 
@@ -421,36 +820,47 @@ public class KXmlSerializer implements XmlSerializer {
         //		depth++;
 
         /*        if (cnt != nspCounts[depth]) {
-                    writer.write(' ');
-                    writer.write("xmlns");
+                    write(' ');
+                    write("xmlns");
                     if (nspStack[cnt * 2] != null) {
-                        writer.write(':');
-                        writer.write(nspStack[cnt * 2]);
+                        write(':');
+                        write(nspStack[cnt * 2]);
                     }
-                    writer.write("=\"");
+                    write("=\"");
                     writeEscaped(nspStack[cnt * 2 + 1], '"');
-                    writer.write('"');
+                    write('"');
                 }
                 */
 
-        writer.write(' ');
-        if (!"".equals(prefix)) {
-            writer.write(prefix);
-            writer.write(':');
+        if (token != null) {
+            if (token.attributePrefix != prefix)
+                token.setAttributePrefix(prefix);
+            write(token.attribute, 0, token.attribute.length);
+        }
+        else {
+            write(' ');
+            if (!"".equals(prefix)) {
+                write(prefix);
+                write(':');
+            }
+            write(name);
+            write('=');
         }
-        writer.write(name);
-        writer.write('=');
         char q = value.indexOf('"') == -1 ? '"' : '\'';
-        writer.write(q);
+        write(q);
         writeEscaped(value, q);
-        writer.write(q);
+        write(q);
 
         return this;
     }
 
     public void flush() throws IOException {
         check(false);
-        writer.flush();
+        flushBuffer();
+        if (out != null)
+            out.flush();
+        else
+            writer.flush();
     }
     /*
     	public void close() throws IOException {
@@ -460,17 +870,36 @@ public class KXmlSerializer implements XmlSerializer {
     */
     public XmlSerializer endTag(String namespace, String name)
         throws IOException {
+        return endTag(namespace, name, null);
+    }
+
+    /** 
+     * Writes an end tag for a token returned by name(). If the start 
+     * tag was written with the same token, the names are not compared.
+     */
+
+    public XmlSerializer endTag(XmlName token) throws IOException {
+        checkOwner(token);
+        return endTag(token.namespace, token.name, token);
+    }
+
+    private final XmlSerializer endTag(
+        String namespace,
+        String name,
+        XmlName token)
+        throws IOException {
 
         if (!pending)
             depth--;
         //        if (namespace == null)
         //          namespace = "";
 
-        if ((namespace == null
-            && elementStack[depth * 3] != null)
-            || (namespace != null
-                && !namespace.equals(elementStack[depth * 3]))
-            || !elementStack[depth * 3 + 2].equals(name))
+        if ((token == null || nameStack[depth] != token)
+            && ((namespace == null
+                && elementStack[depth * 3] != null)
+                || (namespace != null
+                    && !namespace.equals(elementStack[depth * 3]))
+                || !elementStack[depth * 3 + 2].equals(name)))
             throw new IllegalArgumentException("</{"+namespace+"}"+name+"> does not match start");
 
         if (pending) {
@@ -479,19 +908,27 @@ public class KXmlSerializer implements XmlSerializer {
         }
         else {
             if (indent[depth + 1]) {
-                writer.write("\r\n");
+                write("\r\n");
                 for (int i = 0; i < depth; i++)
-                    writer.write("  ");
+                    write("  ");
             }
 
-            writer.write("</");
             String prefix = elementStack[depth * 3 + 1];
-            if (!"".equals(prefix)) {
-                writer.write(prefix);
-                writer.write(':');
+            token = nameStack[depth];
+            if (token != null) {
+                if (token.prefix != prefix)
+                    token.setPrefix(prefix);
+                write(token.endTag, 0, token.endTag.length);
+            }
+            else {
+                write("</");
+                if (!"".equals(prefix)) {
+                    write(prefix);
+                    write(':');
+                }
+                write(name);
+                write('>');
             }
-            writer.write(name);
-            writer.write('>');
         }
 
         nspCounts[depth + 1] = nspCounts[depth];
@@ -519,29 +956,31 @@ public class KXmlSerializer implements XmlSerializer {
 
     public XmlSerializer text(char[] text, int start, int len)
         throws IOException {
-        text(new String(text, start, len));
+        check(false);
+        indent[depth] = false;
+        writeEscaped(text, start, start + len, -1);
         return this;
     }
 
     public void cdsect(String data) throws IOException {
         check(false);
-        writer.write("<![CDATA[");
-        writer.write(data);
-        writer.write("]]>");
+        write("<![CDATA[");
+        write(data);
+        write("]]>");
     }
 
     public void comment(String comment) throws IOException {
         check(false);
-        writer.write("<!--");
-        writer.write(comment);
-        writer.write("-->");
+        write("<!--");
+        write(comment);
+        write("-->");
     }
 
     public void processingInstruction(String pi)
         throws IOException {
         check(false);
-        writer.write("<?");
-        writer.write(pi);
-        writer.write("?>");
+        write("<?");
+        write(pi);
+        write("?>");
     }
 }
@@ -0,0 +1,268 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+import java.io.*;
+import java.util.*;
+
+import org.xmlpull.v1.*;
+
+/** 
+ * An index of the start tag offsets of a document, for jumping to an
+ * element of a large document without parsing everything before it.
+ * <p>
+ * Each entry consists of the path of an element, such as 
+ * "/feed/entry", and the offset of its start tag as returned by
+ * KXmlParser.getEventOffset(). build() records the elements of a
+ * document down to a given depth; the index can then be stored next 
+ * to the document with write() and loaded again with read(). In the 
+ * stored form, paths are kept in a table and the offsets are delta 
+ * encoded, so an entry usually takes two or three bytes.
+ * <p>
+ * restart() sets up a parser at an indexed offset. The offsets are 
+ * only suitable for this if they count bytes, that is for documents 
+ * in UTF-8, ISO-8859-1 or US-ASCII read from an InputStream. With 
+ * namespace processing, prefixes declared by ancestors of the element 
+ * are not known after a restart. */
+
+public class OffsetIndex {
+
+    static final private int MAGIC = 0x4b584f49; // "KXOI"
+    static final private int VERSION = 1;
+
+    private Vector paths = new Vector();
+    private Hashtable pathIds = new Hashtable();
+
+    private int size;
+    private int[] entryPaths = new int[64];
+    private long[] entryOffsets = new long[64];
+
+    /** 
+     * Reads the rest of the document from a parser with blocking input
+     * and returns an index of the start tags up to the given depth; 
+     * deeper elements are passed over with skipSubTree(). */
+
+    public static OffsetIndex build(KXmlParser parser, int maxDepth)
+        throws IOException, XmlPullParserException {
+
+        if (maxDepth < 1)
+            throw new IllegalArgumentException("maxDepth < 1");
+
+        OffsetIndex index = new OffsetIndex();
+        String[] stack = new String[maxDepth + 1];
+        stack[0] = "";
+
+        while (true) {
+            int type = parser.next();
+
+            if (type == XmlPullParser.END_DOCUMENT)
+                break;
+            if (type != XmlPullParser.START_TAG)
+                continue;
+
+            int depth = parser.getDepth();
+            String prefix = parser.getPrefix();
+            String name = parser.getName();
+            stack[depth] =
+                stack[depth - 1]
+                    + '/'
+                    + (prefix == null ? name : prefix + ':' + name);
+            index.add(stack[depth], parser.getEventOffset());
+
+            if (depth == maxDepth)
+                parser.skipSubTree();
+        }
+
+        return index;
+    }
+
+    /** 
+     * Reads an index in the format written by write(). */
+
+    public static OffsetIndex read(InputStream is) throws IOException {
+
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC || in.readByte() != VERSION)
+            throw new IOException("not an offset index");
+
+        OffsetIndex index = new OffsetIndex();
+
+        int pathCount = (int) readNumber(in);
+        for (int i = 0; i < pathCount; i++)
+            index.pathId(in.readUTF());
+
+        int count = (int) readNumber(in);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            int path = (int) readNumber(in);
+            if (path >= pathCount)
+                throw new IOException("illegal path id: " + path);
+            offset += readNumber(in);
+            index.addEntry(path, offset);
+        }
+
+        return index;
+    }
+
+    /** 
+     * Skips the given number of bytes of the stream, which must point to
+     * the start of a document, and sets the rest as input of the parser.
+     * The next call of next() returns the start tag at that offset, and 
+     * getEventOffset() continues to count from the start of the 
+     * document. As there is no XML declaration to read the encoding 
+     * from, the encoding should be given. */
+
+    public static void restart(
+        KXmlParser parser,
+        InputStream is,
+        long offset,
+        String encoding)
+        throws IOException, XmlPullParserException {
+
+        long left = offset;
+        while (left > 0) {
+            long skipped = is.skip(left);
+            if (skipped <= 0) {
+                if (is.read() == -1)
+                    throw new EOFException("offset beyond end of input");
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+
+        parser.setInput(is, encoding);
+        parser.setInputOffset(offset);
+    }
+
+    /** 
+     * Adds an entry; offsets are expected in increasing order, as the 
+     * elements occur in the document. */
+
+    public void add(String path, long offset) {
+        if (size > 0 && offset < entryOffsets[size - 1])
+            throw new IllegalArgumentException("offsets must not decrease");
+        addEntry(pathId(path), offset);
+    }
+
+    /** Returns the number of entries */
+
+    public int size() {
+        return size;
+    }
+
+    public String getPath(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return (String) paths.elementAt(entryPaths[i]);
+    }
+
+    public long getOffset(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return entryOffsets[i];
+    }
+
+    /** 
+     * Returns the index of the first entry with the given path at or 
+     * after the entry from, or -1 if there is none. */
+
+    public int indexOf(String path, int from) {
+        Integer id = (Integer) pathIds.get(path);
+        if (id != null) {
+            int p = id.intValue();
+            for (int i = from; i < size; i++)
+                if (entryPaths[i] == p)
+                    return i;
+        }
+        return -1;
+    }
+
+    /** 
+     * Writes the index: the paths, followed by the path numbers and 
+     * offset deltas of the entries as variable length numbers. */
+
+    public void write(OutputStream os) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        writeNumber(out, paths.size());
+        for (int i = 0; i < paths.size(); i++)
+            out.writeUTF((String) paths.elementAt(i));
+
+        writeNumber(out, size);
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            writeNumber(out, entryPaths[i]);
+            writeNumber(out, entryOffsets[i] - offset);
+            offset = entryOffsets[i];
+        }
+
+        out.flush();
+    }
+
+    private int pathId(String path) {
+        Integer id = (Integer) pathIds.get(path);
+        if (id == null) {
+            id = new Integer(paths.size());
+            paths.addElement(path);
+            pathIds.put(path, id);
+        }
+        return id.intValue();
+    }
+
+    private void addEntry(int path, long offset) {
+        if (size == entryPaths.length) {
+            int[] biggerPaths = new int[size * 2];
+            System.arraycopy(entryPaths, 0, biggerPaths, 0, size);
+            entryPaths = biggerPaths;
+            long[] biggerOffsets = new long[size * 2];
+            System.arraycopy(entryOffsets, 0, biggerOffsets, 0, size);
+            entryOffsets = biggerOffsets;
+        }
+        entryPaths[size] = path;
+        entryOffsets[size] = offset;
+        size++;
+    }
+
+    /** Writes a non-negative number in groups of 7 bits, low bits first */
+
+    private static void writeNumber(DataOutputStream out, long n)
+        throws IOException {
+        while (n > 0x7f) {
+            out.writeByte((int) (n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte((int) n);
+    }
+
+    private static long readNumber(DataInputStream in) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (long) (b & 0x7f) << shift;
+            if (b < 0x80)
+                return n;
+        }
+        throw new IOException("number too long");
+    }
+}
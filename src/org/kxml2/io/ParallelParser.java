@@ -0,0 +1,557 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.xmlpull.v1.*;
+
+/** 
+ * Parses the records of a large document, the elements at a given
+ * depth, in several threads. 
+ * <p>
+ * A first parser reads the document up to the first record. The 
+ * remaining bytes of the parent of that record are then scanned for
+ * the start tags of records, without parsing, and cut into chunks 
+ * at some of them. The chunks are parsed by worker threads, each with
+ * a KXmlNioParser that inherits the namespace declarations in scope 
+ * at the records. Event offsets are byte offsets in the document, as
+ * for a single parser.
+ * <p>
+ * Records are read by RecordHandler.parse() in the worker threads.
+ * The values it returns are passed to RecordHandler.handle() in the 
+ * calling thread, either in document order or chunk by chunk as the 
+ * chunks are completed.
+ * <p>
+ * All records must be children of the same element; a start tag 
+ * after the end of the parent of the first record is reported as an 
+ * error. Since chunks are found on the raw bytes, the document must be
+ * in UTF-8, ISO-8859-1 or US-ASCII. */
+
+public class ParallelParser {
+
+    /** Reads the records of a document, see ParallelParser */
+
+    public interface RecordHandler {
+
+        /** 
+         * Called in a worker thread with a parser positioned at the 
+         * START_TAG of a record; it may read up to the END_TAG of the 
+         * record, but not beyond. The returned value is passed to 
+         * handle(). May be called concurrently. */
+
+        Object parse(XmlPullParser parser)
+            throws IOException, XmlPullParserException;
+
+        /** Called in the calling thread with the value of each record */
+
+        void handle(Object record) throws IOException, XmlPullParserException;
+    }
+
+    private int threads;
+    private boolean ordered;
+    private Hashtable features = new Hashtable();
+    private Hashtable entities = new Hashtable();
+
+    // state of the current parse, guarded by this
+
+    private long[] chunks;
+    private Vector[] results;
+    private int nextChunk;
+    private Throwable failure;
+
+    /** 
+     * Creates a parallel parser using the given number of worker 
+     * threads. If ordered is set, the records are handled in document 
+     * order, otherwise in the order in which chunks are completed. */
+
+    public ParallelParser(int threads, boolean ordered) {
+        if (threads < 1)
+            throw new IllegalArgumentException();
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    /** Sets a feature of the parsers, see KXmlParser.setFeature() */
+
+    public void setFeature(String name, boolean value) {
+        features.put(name, new Boolean(value));
+    }
+
+    /** 
+     * Defines an entity for the parsers, see 
+     * KXmlParser.defineEntityReplacementText() */
+
+    public void defineEntityReplacementText(String entity, String value) {
+        entities.put(entity, value);
+    }
+
+    /** 
+     * Parses the records at the given depth, 1 being the root element,
+     * of the file from the current position of the channel to its end, 
+     * and returns their number. The channel is not changed. */
+
+    public long parse(
+        FileChannel channel,
+        String encoding,
+        int depth,
+        RecordHandler handler)
+        throws IOException, XmlPullParserException {
+
+        KXmlNioParser head = createParser();
+        head.setInput(channel, encoding);
+        defineEntities(head);
+        return parse(head, channel, null, channel.position(), depth, handler);
+    }
+
+    /** 
+     * Parses the records at the given depth, 1 being the root element,
+     * of the remaining bytes of the buffer, and returns their number. 
+     * The position of the buffer is not changed. */
+
+    public long parse(
+        ByteBuffer buffer,
+        String encoding,
+        int depth,
+        RecordHandler handler)
+        throws IOException, XmlPullParserException {
+
+        KXmlNioParser head = createParser();
+        head.setInput(buffer.duplicate(), encoding);
+        defineEntities(head);
+        return parse(head, null, buffer, buffer.position(), depth, handler);
+    }
+
+    private KXmlNioParser createParser() throws XmlPullParserException {
+        KXmlNioParser parser = new KXmlNioParser();
+        for (Enumeration e = features.keys(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            parser.setFeature(
+                name,
+                ((Boolean) features.get(name)).booleanValue());
+        }
+        return parser;
+    }
+
+    /** Defines the entities in a parser after its input has been set */
+
+    private void defineEntities(KXmlParser parser)
+        throws XmlPullParserException {
+        for (Enumeration e = entities.keys(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            parser.defineEntityReplacementText(
+                name,
+                (String) entities.get(name));
+        }
+    }
+
+    private long parse(
+        KXmlNioParser head,
+        final FileChannel channel,
+        final ByteBuffer buffer,
+        final long base,
+        final int depth,
+        final RecordHandler handler)
+        throws IOException, XmlPullParserException {
+
+        if (depth < 1)
+            throw new IllegalArgumentException();
+
+        int type;
+        while ((type = head.next()) != XmlPullParser.END_DOCUMENT)
+            if (type == XmlPullParser.START_TAG && head.getDepth() == depth)
+                break;
+        if (type == XmlPullParser.END_DOCUMENT)
+            return 0;
+
+        if (!head.countsBytes())
+            throw new XmlPullParserException(
+                "parallel parsing requires UTF-8, ISO-8859-1 or US-ASCII",
+                head,
+                null);
+
+        final String encoding = head.getInputEncoding();
+        int count = head.getNamespaceCount(depth - 1);
+        final String[] namespaces = new String[count * 2];
+        for (int i = 0; i < count; i++) {
+            namespaces[i * 2] = head.getNamespacePrefix(i);
+            namespaces[i * 2 + 1] = head.getNamespaceUri(i);
+        }
+
+        long start = head.getEventOffset();
+        long size =
+            channel != null
+                ? channel.size() - base
+                : (long) buffer.remaining();
+        InputStream in;
+        if (channel != null)
+            in =
+                new KXmlNioParser.MappedInput(
+                    channel,
+                    1 << 26,
+                    base + start,
+                    base + size);
+        else {
+            ByteBuffer rest = buffer.duplicate();
+            rest.position((int) (base + start));
+            in = new KXmlNioParser.BufferInput(rest);
+        }
+
+        chunks =
+            new Scanner(in, start).scan(
+                Math.max(65536, (size - start) / (threads * 8)),
+                head);
+        results = new Vector[chunks.length - 1];
+        nextChunk = 0;
+        failure = null;
+
+        Thread[] workers = new Thread[Math.min(threads, results.length)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        KXmlNioParser parser = createParser();
+                        int chunk;
+                        while ((chunk = nextChunk()) != -1) {
+                            long from = chunks[chunk];
+                            long to = chunks[chunk + 1];
+                            if (channel != null)
+                                parser.setInput(
+                                    channel,
+                                    base + from,
+                                    to - from,
+                                    encoding);
+                            else {
+                                ByteBuffer range = buffer.duplicate();
+                                range.limit((int) (base + to));
+                                range.position((int) (base + from));
+                                parser.setInput(range, encoding);
+                            }
+                            parser.setInputOffset(from);
+                            for (int j = 0; j < namespaces.length; j += 2)
+                                parser.declareNamespace(
+                                    namespaces[j],
+                                    namespaces[j + 1]);
+                            defineEntities(parser);
+                            done(chunk, parseChunk(parser, handler));
+                        }
+                    }
+                    catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        long records = 0;
+        try {
+            for (int i = 0; i < results.length; i++) {
+                Vector values = takeResults(i);
+                for (int j = 0; j < values.size(); j++)
+                    handler.handle(values.elementAt(j));
+                records += values.size();
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+        catch (XmlPullParserException e) {
+            fail(e);
+        }
+        catch (RuntimeException e) {
+            fail(e);
+        }
+        catch (Error e) {
+            fail(e);
+        }
+
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            }
+            catch (InterruptedException e) {
+                fail(e);
+            }
+        }
+
+        Throwable e = failure;
+        chunks = null;
+        results = null;
+        failure = null;
+
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof XmlPullParserException)
+            throw (XmlPullParserException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e != null)
+            throw new IOException(e.toString());
+        return records;
+    }
+
+    /** Parses the records of a chunk, returning the handler values */
+
+    static Vector parseChunk(KXmlParser parser, RecordHandler handler)
+        throws IOException, XmlPullParserException {
+
+        Vector values = new Vector();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG)
+                continue;
+
+            values.addElement(handler.parse(parser));
+
+            while (true) {
+                type = parser.getEventType();
+                if (type == XmlPullParser.END_TAG && parser.getDepth() == 1)
+                    break;
+                if (type == XmlPullParser.END_DOCUMENT)
+                    throw new XmlPullParserException(
+                        "record handler read beyond its record",
+                        parser,
+                        null);
+                if (type == XmlPullParser.START_TAG && parser.getDepth() == 1)
+                    parser.skipSubTree();
+                else
+                    parser.next();
+            }
+        }
+        return values;
+    }
+
+    /** Returns the next chunk to parse, or -1 if there is none */
+
+    synchronized int nextChunk() {
+        return failure != null || nextChunk >= results.length
+            ? -1
+            : nextChunk++;
+    }
+
+    synchronized void done(int chunk, Vector values) {
+        results[chunk] = values;
+        notifyAll();
+    }
+
+    synchronized void fail(Throwable e) {
+        if (failure == null)
+            failure = e;
+        notifyAll();
+    }
+
+    /** 
+     * Waits for the i-th completed chunk, in document order if ordered
+     * is set, and returns its values, or throws a pending failure. */
+
+    synchronized Vector takeResults(int i)
+        throws IOException, XmlPullParserException {
+        while (true) {
+            if (failure != null)
+                throw new XmlPullParserException(
+                    "parallel parsing failed",
+                    null,
+                    failure);
+            int found = -1;
+            for (int j = ordered ? i : 0; j < results.length; j++) {
+                if (results[j] != null && results[j] != EMPTY) {
+                    found = j;
+                    break;
+                }
+                if (ordered)
+                    break;
+            }
+            if (found != -1) {
+                Vector values = results[found];
+                // delivered chunks are marked by a shared empty vector
+                results[found] = EMPTY;
+                return values;
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                throw new XmlPullParserException(e.toString(), null, e);
+            }
+        }
+    }
+
+    private static final Vector EMPTY = new Vector();
+
+    /** 
+     * Finds the start offsets of records in the raw bytes of a 
+     * document. Start tags are told apart from end tags, comments, 
+     * CDATA sections and processing instructions, and quoted attribute
+     * values are skipped, which is enough to track the element depth 
+     * of well-formed content. */
+
+    static class Scanner {
+
+        private InputStream in;
+        private byte[] buf = new byte[65536];
+        private int pos;
+        private int count;
+        /** offset of buf[0] in the document */
+        private long offset;
+
+        Scanner(InputStream in, long offset) {
+            this.in = in;
+            this.offset = offset;
+        }
+
+        /** 
+         * Returns the offsets of the chunk boundaries, starting with the
+         * first record, at record starts at least chunkSize bytes apart,
+         * and ending with the end tag of the parent of the records. */
+
+        long[] scan(long chunkSize, KXmlParser parser)
+            throws IOException, XmlPullParserException {
+
+            Vector bounds = new Vector();
+            long target = offset;
+            long end = -1;
+            int depth = 0;
+
+            while (skipText()) {
+                long tag = offset + pos;
+                pos++;
+                int c = read();
+                if (c == '/') {
+                    skipTo('>');
+                    if (--depth < 0 && end == -1)
+                        end = tag;
+                }
+                else if (c == '?')
+                    skipPast("?>");
+                else if (c == '!') {
+                    c = read();
+                    if (c == '-')
+                        skipPast("-->");
+                    else if (c == '[')
+                        skipPast("]]>");
+                    else
+                        skipTo('>');
+                }
+                else if (c != -1) {
+                    if (end != -1)
+                        throw new XmlPullParserException(
+                            "element after the parent of the records at "
+                                + tag,
+                            parser,
+                            null);
+                    if (depth == 0 && tag >= target) {
+                        bounds.addElement(new Long(tag));
+                        target = tag + chunkSize;
+                    }
+                    if (!skipStartTag())
+                        depth++;
+                }
+            }
+
+            bounds.addElement(new Long(end == -1 ? offset + pos : end));
+            long[] result = new long[bounds.size()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = ((Long) bounds.elementAt(i)).longValue();
+            return result;
+        }
+
+        /** Reads the next byte, or returns -1 at the end of the input */
+
+        private int read() throws IOException {
+            if (pos == count && !fill())
+                return -1;
+            return buf[pos++] & 0x0ff;
+        }
+
+        private boolean fill() throws IOException {
+            offset += count;
+            pos = 0;
+            count = in.read(buf, 0, buf.length);
+            if (count > 0)
+                return true;
+            count = 0;
+            return false;
+        }
+
+        /** Skips to the next '<', returning false at the end of the input */
+
+        private boolean skipText() throws IOException {
+            while (true) {
+                for (int i = pos; i < count; i++) {
+                    if (buf[i] == '<') {
+                        pos = i;
+                        return true;
+                    }
+                }
+                pos = count;
+                if (!fill())
+                    return false;
+            }
+        }
+
+        private void skipTo(int delimiter) throws IOException {
+            int c;
+            do
+                c = read();
+            while (c != delimiter && c != -1);
+        }
+
+        /** 
+         * Skips past the given delimiter; its chars must all be equal 
+         * but the last. */
+
+        private void skipPast(String delimiter) throws IOException {
+            int last = delimiter.length() - 1;
+            int repeat = delimiter.charAt(0);
+            int matched = 0;
+            int c;
+            while ((c = read()) != -1) {
+                if (matched >= last && c == delimiter.charAt(last))
+                    return;
+                if (c == repeat)
+                    matched++;
+                else
+                    matched = 0;
+            }
+        }
+
+        /** 
+         * Skips the rest of a start tag, returning whether the element 
+         * is empty. */
+
+        private boolean skipStartTag() throws IOException {
+            int prev = 0;
+            int c;
+            while ((c = read()) != -1 && c != '>') {
+                if (c == '"' || c == '\'')
+                    skipTo(c);
+                prev = c;
+            }
+            return prev == '/';
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+/** 
+ * A table of canonical strings for element and attribute names. 
+ * Names are looked up by char range, so a name that is already in the 
+ * table costs no allocation, and all names returned are interned 
+ * (String.intern()) and may be compared with ==. 
+ * <p>
+ * A table may be shared by several parsers that parse the same 
+ * vocabulary by setting the property
+ * "http://xmlpull.org/v1/doc/properties.html#symbol-table" of 
+ * KXmlParser. It is safe to share a table between threads: lookups 
+ * do not lock, only adding a new name does. */
+
+public class SymbolTable {
+
+    /** open addressing, linear probing; at most half full */
+    private String[] symbols = new String[64];
+    private int count;
+    private int maxCount;
+
+    /** 
+     * Creates a table that keeps at most 4096 names; further names 
+     * are still interned, but not cached */
+
+    public SymbolTable() {
+        this(4096);
+    }
+
+    public SymbolTable(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    /** 
+     * Returns the canonical string for the given chars. */
+
+    public String add(char[] buf, int start, int len) {
+
+        int hash = 0;
+        for (int i = start; i < start + len; i++)
+            hash = 31 * hash + buf[i];
+
+        String[] table = symbols;
+        int mask = table.length - 1;
+        int i = (hash ^ (hash >>> 7)) & mask;
+
+        while (true) {
+            String s = table[i];
+            if (s == null)
+                break;
+            if (s.hashCode() == hash && s.length() == len) {
+                int j = 0;
+                while (j < len && s.charAt(j) == buf[start + j])
+                    j++;
+                if (j == len)
+                    return s;
+            }
+            i = (i + 1) & mask;
+        }
+
+        return add(new String(buf, start, len), hash);
+    }
+
+    /** 
+     * Returns the canonical string equal to s. */
+
+    public String add(String s) {
+        char[] buf = s.toCharArray();
+        return add(buf, 0, buf.length);
+    }
+
+    /** Returns the number of names in the table */
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private synchronized String add(String s, int hash) {
+
+        String[] table = symbols;
+        int mask = table.length - 1;
+        int i = (hash ^ (hash >>> 7)) & mask;
+
+        // another thread may have added s in the meantime
+
+        while (table[i] != null) {
+            if (table[i].equals(s))
+                return table[i];
+            i = (i + 1) & mask;
+        }
+
+        s = s.intern();
+
+        if (count >= maxCount)
+            return s;
+
+        if (++count * 2 <= table.length)
+            table[i] = s;
+        else {
+            // readers still probing the old table just miss and lock
+
+            String[] bigger = new String[table.length * 2];
+            for (int j = 0; j < table.length; j++) {
+                if (table[j] != null)
+                    insert(bigger, table[j]);
+            }
+            insert(bigger, s);
+            symbols = bigger;
+        }
+
+        return s;
+    }
+
+    private static void insert(String[] table, String s) {
+        int mask = table.length - 1;
+        int h = s.hashCode();
+        int i = (h ^ (h >>> 7)) & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = s;
+    }
+}
@@ -0,0 +1,77 @@
+/* Copyright (c) 2002,2003, Stefan Haustein, Oberhausen, Rhld., Germany
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The  above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE. */
+
+package org.kxml2.io;
+
+/** 
+ * A namespace and name registered with KXmlSerializer.name(), for 
+ * writing the same tags and attributes many times. The qualified name
+ * is kept ready for output and only rebuilt when the prefix of the 
+ * namespace changes. */
+
+public class XmlName {
+
+    final KXmlSerializer owner;
+    final String namespace;
+    final String name;
+
+    /** The prefix of the last tag, and "<prefix:name" and "</prefix:name>" */
+    String prefix;
+    char[] startTag;
+    char[] endTag;
+
+    /** The prefix of the last attribute, and " prefix:name=" */
+    String attributePrefix;
+    char[] attribute;
+
+    XmlName(KXmlSerializer owner, String namespace, String name) {
+        this.owner = owner;
+        this.namespace = namespace;
+        this.name = name;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setPrefix(String prefix) {
+        String qname = qualify(prefix);
+        this.prefix = prefix;
+        startTag = ("<" + qname).toCharArray();
+        endTag = ("</" + qname + ">").toCharArray();
+    }
+
+    void setAttributePrefix(String prefix) {
+        attributePrefix = prefix;
+        attribute = (" " + qualify(prefix) + "=").toCharArray();
+    }
+
+    private String qualify(String prefix) {
+        return "".equals(prefix) ? name : prefix + ":" + name;
+    }
+
+    public String toString() {
+        return "{" + namespace + "}" + name;
+    }
+}
@@ -38,6 +38,16 @@ public class Element extends Node {
     protected Node parent;
     protected Vector prefixes;
 
+    /** elements with more attributes are looked up in attributeIndex */
+    private static final int ATTRIBUTE_INDEX_THRESHOLD = 8;
+
+    /** 
+     * Maps attribute names to their index, or to -1 for names used in
+     * several namespaces; built on demand and kept up to date by 
+     * setAttribute */
+    private Hashtable attributeIndex;
+    private int indexedCount;
+
     public Element() {
     }
 
@@ -57,6 +67,7 @@ public class Element extends Node {
 
     public void clear() {
         attributes = null;
+        attributeIndex = null;
         children = null;
     }
 
@@ -99,13 +110,51 @@ public class Element extends Node {
 	
 	
 	public String getAttributeValue (String namespace, String name) {
-		for (int i = 0; i < getAttributeCount (); i++) {
+		int i = getAttributeIndex (namespace, name);
+		return i == -1 ? null : getAttributeValue (i);
+	}
+
+	/** 
+	 * Returns the index of the attribute with the given namespace and 
+	 * name, or -1; a null namespace matches any namespace. Elements 
+	 * with many attributes are looked up in a hash table. */
+
+	public int getAttributeIndex (String namespace, String name) {
+		int count = getAttributeCount ();
+
+		if (count > ATTRIBUTE_INDEX_THRESHOLD) {
+			if (attributeIndex == null || indexedCount != count) 
+				indexAttributes ();
+
+			Integer index = (Integer) attributeIndex.get (name);
+			if (index == null)
+				return -1;
+
+			int i = index.intValue ();
+			if (i != -1 && name.equals (getAttributeName (i)))
+				return namespace == null || namespace.equals (getAttributeNamespace (i)) ? i : -1;
+		}
+
+		for (int i = 0; i < count; i++) {
 			if (name.equals (getAttributeName (i)) 
 				&& (namespace == null || namespace.equals (getAttributeNamespace(i)))) {
-				return getAttributeValue (i);
+				return i;
 			}
 		}						
-		return null;			
+		return -1;
+	}
+
+	private void indexAttributes () {
+		attributeIndex = new Hashtable ();
+		indexedCount = 0;
+		for (int i = 0; i < attributes.size (); i++) 
+			addToIndex (getAttributeName (i), i);
+	}
+
+	private void addToIndex (String name, int i) {
+		attributeIndex.put 
+			(name, new Integer (attributeIndex.containsKey (name) ? -1 : i));
+		indexedCount++;
 	}
 
     /** 
@@ -243,21 +292,21 @@ public class Element extends Node {
 		if (namespace == null) 
 			namespace = "";
 		
-        for (int i = attributes.size()-1; i >=0; i--){
-            String[] attribut = (String[]) attributes.elementAt(i);
-            if (attribut[0].equals(namespace) &&
-				attribut[1].equals(name)){
-					
-				if (value == null) {
-	                attributes.removeElementAt(i);
-				}
-				else {
-					attribut[2] = value;
-				}
-	            return; 
-			}
+        int i = getAttributeIndex (namespace, name);
+        if (i != -1) {
+            if (value == null) {
+                attributes.removeElementAt(i);
+                attributeIndex = null;
+            }
+            else {
+                ((String[]) attributes.elementAt(i))[2] = value;
+            }
+            return; 
         }
 
+		if (attributeIndex != null) 
+			addToIndex (name, attributes.size ());
+
 		attributes.addElement 
 			(new String [] {namespace, name, value});
 	}
@@ -65,6 +65,8 @@ public class WbxmlParser implements XmlPullParser {
     
     private int attributeCount;
     private String[] attributes = new String[16];
+    /** open addressing table of attribute indices + 1, see checkDuplicates */
+    private int[] attributeHash = new int[32];
     private int nextId = -2;
     
     private Vector tables = new Vector();
@@ -568,19 +570,10 @@ public class WbxmlParser implements XmlPullParser {
                     attributes[i] = attrNs;
                     attributes[i + 1] = attrPrefix;
                     attributes[i + 2] = attrName;
-                    
-                    for (int j = (attributeCount << 2) - 4;
-                    j > i;
-                    j -= 4)
-                        if (attrName.equals(attributes[j + 2])
-                        && attrNs.equals(attributes[j]))
-                            exception(
-                            "Duplicate Attribute: {"
-                            + attrNs
-                            + "}"
-                            + attrName);
                 }
             }
+            
+            checkDuplicates();
         }
         
         int cut = name.indexOf(':');
@@ -925,15 +918,7 @@ public class WbxmlParser implements XmlPullParser {
         
         nspCounts[depth] = nspCounts[depth - 1];
         
-        for (int i = attributeCount - 1; i > 0; i--) {
-            for (int j = 0; j < i; j++) {
-                if (getAttributeName(i)
-                .equals(getAttributeName(j)))
-                    exception(
-                    "Duplicate Attribute: "
-                    + getAttributeName(i));
-            }
-        }
+        checkDuplicates();
         
         if (processNsp)
             adjustNsp();
@@ -946,6 +931,48 @@ public class WbxmlParser implements XmlPullParser {
         
     }
     
+    /** 
+     * Throws an exception if two attributes have the same namespace and
+     * name. Instead of comparing all pairs, the attributes are entered
+     * in attributeHash, an open addressing table indexed by name hash. */
+    
+    private final void checkDuplicates() throws XmlPullParserException {
+        
+        if (attributeCount < 2)
+            return;
+        
+        int size = attributeHash.length;
+        while (size < attributeCount << 1)
+            size <<= 1;
+        
+        if (size > attributeHash.length)
+            attributeHash = new int[size];
+        else
+            for (int i = 0; i < size; i++)
+                attributeHash[i] = 0;
+        
+        int mask = size - 1;
+        
+        for (int index = 0; index < attributeCount; index++) {
+            int i = index << 2;
+            String attrName = attributes[i + 2];
+            int h = attrName.hashCode();
+            int slot = (h ^ (h >>> 16)) & mask;
+            
+            while (attributeHash[slot] != 0) {
+                int j = (attributeHash[slot] - 1) << 2;
+                if (attrName.equals(attributes[j + 2])
+                && attributes[i].equals(attributes[j]))
+                    exception(
+                    "Duplicate Attribute: "
+                    + (attributes[i].length() == 0 ? "" : "{" + attributes[i] + "}")
+                    + attrName);
+                slot = (slot + 1) & mask;
+            }
+            attributeHash[slot] = index + 1;
+        }
+    }
+    
     private final String[] ensureCapacity(
     String[] arr,
     int required) {
@@ -0,0 +1,1004 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlNioParser;
+import org.kxml2.io.KXmlParser;
+import org.kxml2.io.KXmlParserPool;
+import org.kxml2.io.OffsetIndex;
+import org.kxml2.io.ParallelParser;
+import org.kxml2.io.SymbolTable;
+import org.kxml2.kdom.Document;
+import org.kxml2.kdom.Element;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+public class TestKXmlParser extends TestCase 
+{
+	static final String LAZY_ATTRIBUTES = "http://xmlpull.org/v1/doc/features.html#lazy-attributes";
+	static final String RAW_SKIP = "http://xmlpull.org/v1/doc/features.html#raw-skip";
+	static final String SYMBOL_TABLE = "http://xmlpull.org/v1/doc/properties.html#symbol-table";
+
+	public void testSharedSymbolTable() throws Exception
+	{
+		SymbolTable symbols = new SymbolTable();
+
+		KXmlParser p1 = new KXmlParser();
+		KXmlParser p2 = new KXmlParser();
+		p1.setProperty(SYMBOL_TABLE, symbols);
+		p2.setProperty(SYMBOL_TABLE, symbols);
+
+		p1.setInput(new StringReader("<feed><item id='1'/></feed>"));
+		p2.setInput(new StringReader("<feed><item id='2'/></feed>"));
+
+		p1.nextTag();
+		p1.nextTag();
+		p2.nextTag();
+		p2.nextTag();
+
+		assertSame(p1.getName(), p2.getName());
+		assertSame("item", p1.getName());
+		assertSame("id", p2.getAttributeName(0));
+		assertEquals(3, symbols.size());
+	}
+
+	public void testAttributeValueCharacters() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader(
+			"<a xmlns:x='urn:x' x:b='1 &amp; 2' c=\"\" d='&#x41;z'/>"));
+		p.nextTag();
+
+		int[] poslen = new int[2];
+		assertEquals(3, p.getAttributeCount());
+		char[] buf = p.getAttributeValueCharacters(0, poslen);
+		assertEquals("1 & 2", new String(buf, poslen[0], poslen[1]));
+		buf = p.getAttributeValueCharacters(1, poslen);
+		assertEquals(0, poslen[1]);
+		buf = p.getAttributeValueCharacters(2, poslen);
+		assertEquals("Az", new String(buf, poslen[0], poslen[1]));
+
+		assertEquals("1 & 2", p.getAttributeValue("urn:x", "b"));
+		assertEquals("", p.getAttributeValue(1));
+		assertEquals("Az", p.getAttributeValue(null, "d"));
+	}
+
+	public void testLazyAttributes() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setFeature(LAZY_ATTRIBUTES, true);
+		assertTrue(p.getFeature(LAZY_ATTRIBUTES));
+		p.setInput(new StringReader(
+			"<a b='x&lt;&#65;\r\ny' c='&undefined;'/>"));
+		p.nextTag();
+
+		assertEquals("x<A y", p.getAttributeValue(null, "b"));
+		assertEquals("x<A y", p.getAttributeValue(0));
+		try {
+			p.getAttributeValue(1);
+			fail("unresolved entity expected");
+		}
+		catch (RuntimeException e) {
+			// reported on first access instead of in next()
+		}
+		assertEquals(XmlPullParser.END_TAG, p.nextTag());
+	}
+
+	public void testEntities() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setInput(new StringReader(
+			"<a b='&#x1F600;&quot;'>&lt;&gt;&amp;&apos;&#65;&#x42;&#x1f600;&e;</a>"));
+		p.defineEntityReplacementText("e", "[e]");
+		p.nextTag();
+
+		assertEquals("\ud83d\ude00\"", p.getAttributeValue(0));
+		assertEquals("<>&'AB\ud83d\ude00[e]", p.nextText());
+	}
+
+	public void testNamespaceScopes() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader(
+			"<a:x xmlns:a='urn:1' xmlns='urn:d'>"
+				+ "<a:y xmlns:a='urn:2' a:z='v' xmlns=''/>"
+				+ "<a:y a:z='w'/></a:x>"));
+
+		p.nextTag();
+		assertEquals("x", p.getName());
+		assertEquals("a", p.getPrefix());
+		assertEquals("urn:1", p.getNamespace());
+		assertEquals(0, p.getAttributeCount());
+
+		p.nextTag();
+		assertEquals("urn:2", p.getNamespace());
+		assertEquals(1, p.getAttributeCount());
+		assertEquals("z", p.getAttributeName(0));
+		assertEquals("a", p.getAttributePrefix(0));
+		assertEquals("urn:2", p.getAttributeNamespace(0));
+		assertEquals("", p.getNamespace(null));
+
+		assertEquals(XmlPullParser.END_TAG, p.nextTag());
+		assertEquals("urn:2", p.getNamespace("a"));
+
+		p.nextTag();
+		assertEquals("urn:1", p.getNamespace());
+		assertEquals("urn:1", p.getAttributeNamespace(0));
+		assertEquals("urn:d", p.getNamespace(null));
+		assertEquals("urn:1", p.getNamespace(new String("a")));
+	}
+
+	public void testPrefixedXmlDeclaration() throws Exception
+	{
+		String[] docs = {
+			"<?xml version='1.0' :encoding='UTF-8'?><a/>",
+			"<?xml x:version='1.0'?><a/>" };
+
+		for (int i = 0; i < docs.length * 2; i++)
+		{
+			KXmlParser p = new KXmlParser();
+			p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			if (i < docs.length)
+				p.setInput(new StringReader(docs[i]));
+			else
+				p.setInput(new ByteArrayInputStream(
+					docs[i - docs.length].getBytes("UTF-8")), null);
+			try
+			{
+				p.nextTag();
+				fail(docs[i % docs.length]);
+			}
+			catch (XmlPullParserException e)
+			{
+			}
+		}
+
+		KXmlParser p = new KXmlParser();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader("<?xml version='1.0' encoding='UTF-8'?><a/>"));
+		assertEquals(XmlPullParser.START_TAG, p.nextTag());
+		assertEquals("a", p.getName());
+	}
+
+	public void testRawSkip() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setFeature(RAW_SKIP, true);
+		p.setInput(new StringReader(
+			"<r><skip a='>' b=\"/>\"><!-- <x> --><![CDATA[<y>]]>"
+				+ "<?pi <z>?><n/><n>&undefined;</n></skip><next/></r>"));
+		p.nextTag();
+		p.nextTag();
+
+		p.skipSubTree();
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+		assertEquals("skip", p.getName());
+		assertEquals(2, p.getDepth());
+
+		p.nextTag();
+		assertEquals("next", p.getName());
+		p.skipSubTree();
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+		assertEquals("next", p.getName());
+	}
+
+	public void testPool() throws Exception
+	{
+		KXmlParserPool pool = new KXmlParserPool(2, 1024);
+
+		KXmlParser p = pool.get();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader("<a xmlns='urn:a'><b/></a>"));
+		p.nextTag();
+		assertEquals("urn:a", p.getNamespace());
+		pool.release(p);
+
+		assertSame(p, pool.get());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertFalse(p.getFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES));
+
+		p.setInput(new StringReader("<a:b/>"));
+		p.nextTag();
+		assertEquals("a:b", p.getName());
+		assertEquals(1, p.getDepth());
+		pool.release(p);
+		pool.release(new KXmlParser());
+		pool.release(new KXmlParser());
+		assertEquals(2, pool.getIdleCount());
+	}
+
+	public void testMappedFile() throws Exception
+	{
+		byte[] doc = "\ufeff<a>\u00e9<b x='1'/></a>".getBytes("UTF-8");
+		File file = File.createTempFile("kxml", ".xml");
+		FileInputStream in = null;
+		try
+		{
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(doc);
+			out.close();
+
+			in = new FileInputStream(file);
+			KXmlNioParser p = new KXmlNioParser(16, 16, 3);
+			p.setInput(in.getChannel(), null);
+
+			assertEquals(XmlPullParser.START_TAG, p.nextToken());
+			assertEquals("a", p.getName());
+			assertEquals(3, p.getEventOffset());
+			assertEquals(XmlPullParser.TEXT, p.nextToken());
+			assertEquals("\u00e9", p.getText());
+			assertEquals(6, p.getEventOffset());
+			assertEquals(XmlPullParser.START_TAG, p.nextToken());
+			assertEquals("1", p.getAttributeValue(null, "x"));
+			assertEquals(8, p.getEventOffset());
+			p.nextToken();
+			assertEquals(XmlPullParser.END_TAG, p.nextToken());
+			assertEquals(18, p.getEventOffset());
+		}
+		finally
+		{
+			if (in != null)
+				in.close();
+			file.delete();
+		}
+	}
+
+	public void testDecoder() throws Exception
+	{
+		byte[][] texts = {
+			"x\u00e9\u20ac\ud83d\ude00y".getBytes("UTF-8"),
+			// stray continuation, invalid lead bytes, overlong forms
+			{ (byte) 0x80, 'a', (byte) 0xc0, (byte) 0xaf, (byte) 0xc1, (byte) 0xbf, (byte) 0xff },
+			{ (byte) 0xe0, (byte) 0x80, (byte) 0xaf, (byte) 0xf0, (byte) 0x80, (byte) 0x80, (byte) 0xaf },
+			// surrogates and values beyond U+10FFFF
+			{ (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+			// truncated sequences before ASCII and before the end tag
+			{ (byte) 0xf0, (byte) 0x9f, (byte) 0x98, 'b', (byte) 0xe2, (byte) 0x82 },
+		};
+		String[] encodings = { "UTF-8", "ISO-8859-1", "US-ASCII" };
+
+		for (int i = 0; i < texts.length; i++)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write("<a>".getBytes("UTF-8"));
+			out.write(texts[i]);
+			out.write("</a>".getBytes("UTF-8"));
+			byte[] doc = out.toByteArray();
+
+			for (int j = 0; j < encodings.length; j++)
+			{
+				StringBuffer expected = new StringBuffer();
+				Reader reader = new InputStreamReader(
+					new ByteArrayInputStream(doc, 3, texts[i].length), encodings[j]);
+				for (int c = reader.read(); c != -1; c = reader.read())
+					expected.append((char) c);
+
+				// one byte per read() and a tiny buffer split every sequence
+				assertEquals(expected.toString(), decodeText(doc, encodings[j], false, 1024));
+				assertEquals(expected.toString(), decodeText(doc, encodings[j], true, 1024));
+				assertEquals(expected.toString(), decodeText(doc, encodings[j], true, 4));
+			}
+		}
+
+		// a UTF-8 BOM is skipped, also when the bytes arrive one by one
+		byte[] bom = "\ufeff<a>\u00e9\ud83d\ude00</a>".getBytes("UTF-8");
+		assertEquals("\u00e9\ud83d\ude00", decodeText(bom, null, false, 1024));
+		assertEquals("\u00e9\ud83d\ude00", decodeText(bom, null, true, 4));
+
+		// without a given encoding, the one in the XML declaration is used
+		byte[] latin1 = "<?xml version='1.0' encoding='ISO-8859-1'?><a>\u00e9\u00ff</a>".getBytes("ISO-8859-1");
+		assertEquals("\u00e9\u00ff", decodeText(latin1, null, false, 1024));
+		assertEquals("\u00e9\u00ff", decodeText(latin1, null, true, 4));
+		byte[] ascii = "<?xml version='1.0' encoding='US-ASCII'?><a>\u00e9</a>".getBytes("ISO-8859-1");
+		assertEquals("\ufffd", decodeText(ascii, null, true, 1024));
+		byte[] utf8 = "<?xml version='1.0'?><a>\u00e9\u20ac</a>".getBytes("UTF-8");
+		assertEquals("\u00e9\u20ac", decodeText(utf8, null, true, 4));
+	}
+
+	public void testPositions() throws Exception
+	{
+		String doc = "<a>\n<b/>\r<c/>\r\n<d>x\r\ny</d>\n\r</a>";
+		String expected = "1:3 2:1 2:5 2:5 3:1 3:5 3:5 4:1 4:4 5:2 5:6 7:1 7:5 7:5 ";
+
+		// small buffers put every line end, also a CR LF pair, at a refill
+		for (int size = 4; size <= 32; size++)
+		{
+			KXmlParser p = new KXmlParser(size, size);
+			p.setInput(new StringReader(doc));
+			assertEquals("size " + size, expected, positions(p));
+			p.setInput(new TrickleInputStream(new ByteArrayInputStream(doc.getBytes("UTF-8"))), null);
+			assertEquals("size " + size, expected, positions(p));
+		}
+	}
+
+	public void testRefill() throws Exception
+	{
+		String doc = "<?xml version='1.0'?>\r\n<document-with-a-long-name \r\n\t  first-attribute =\r\n"
+			+ " 'a rather long value &amp; more'\t\tsecond=\"\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\">"
+			+ "text that is longer than the buffer\r\nwith &lt;entities&gt; and \ud83d\ude00"
+			+ "<!-- a comment that straddles refills --><![CDATA[some <cdata> text]]>"
+			+ "<?target a processing instruction?>\r"
+			+ "<child-element-name/>   \n   </document-with-a-long-name   >";
+
+		KXmlParser p = new KXmlParser();
+		p.setInput(new StringReader(doc));
+		String expected = events(p);
+		assertTrue(expected.indexOf("second=\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9 ") != -1);
+		assertTrue(expected.indexOf("first-attribute=a rather long value & more ") != -1);
+
+		for (int size = 4; size <= 32; size++)
+		{
+			p = new KXmlParser(size, size);
+			p.setInput(new StringReader(doc));
+			assertEquals("size " + size, expected, events(p));
+			p.setInput(new ByteArrayInputStream(doc.getBytes("UTF-8")), null);
+			assertEquals("size " + size, expected, events(p));
+			p.setInput(new TrickleInputStream(new ByteArrayInputStream(doc.getBytes("UTF-8"))), null);
+			assertEquals("size " + size, expected, events(p));
+		}
+	}
+
+	public void testBufferSizes() throws Exception
+	{
+		int[][] invalid = { { 0, 16 }, { 3, 16 }, { 16, 8 }, { -1, -1 } };
+		for (int i = 0; i < invalid.length; i++)
+		{
+			try
+			{
+				new KXmlParser(invalid[i][0], invalid[i][1]);
+				fail(invalid[i][0] + ", " + invalid[i][1]);
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+		}
+		try
+		{
+			new KXmlParser(3);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		StringBuffer doc = new StringBuffer("<a-root-element-name-longer-than-the-buffer>");
+		for (int i = 0; i < 100; i++)
+			doc.append("<entry attribute-name='an attribute value longer than 16'>"
+				+ "text \u00e9 " + i + " longer than sixteen chars</entry>");
+		doc.append("</a-root-element-name-longer-than-the-buffer>");
+
+		KXmlParser p = new KXmlParser();
+		p.setInput(new StringReader(doc.toString()));
+		String expected = events(p);
+
+		// full reads double the buffer, but never beyond the maximum
+		p = new KXmlParser(16, 64);
+		RecordingReader reader = new RecordingReader(new StringReader(doc.toString()));
+		p.setInput(reader);
+		assertEquals(expected, events(p));
+		assertEquals(64, reader.maxLen);
+
+		RecordingInputStream in = new RecordingInputStream(
+			new ByteArrayInputStream(doc.toString().getBytes("UTF-8")));
+		p.setInput(in, "UTF-8");
+		assertEquals(expected, events(p));
+		assertEquals(64, in.maxLen);
+
+		p = new KXmlParser(16);
+		in = new RecordingInputStream(
+			new ByteArrayInputStream(doc.toString().getBytes("UTF-8")));
+		p.setInput(in, "UTF-8");
+		assertEquals(expected, events(p));
+		assertEquals(16, in.maxLen);
+
+		// short reads keep the initial buffer
+		p = new KXmlParser(16, 64);
+		in = new RecordingInputStream(new TrickleInputStream(
+			new ByteArrayInputStream(doc.toString().getBytes("UTF-8"))));
+		p.setInput(in, "UTF-8");
+		assertEquals(expected, events(p));
+		assertEquals(16, in.maxLen);
+	}
+
+	public void testBufferInput() throws Exception
+	{
+		byte[] bytes = "--<?xml version='1.0'?><a>\u00e9<b/>\n</a>--".getBytes("UTF-8");
+		byte[] copy = (byte[]) bytes.clone();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 4);
+
+		KXmlNioParser p = new KXmlNioParser(8, 8, 64);
+		p.setInput(buffer.slice(), null);
+		assertEquals(XmlPullParser.START_TAG, p.nextTag());
+		assertEquals(21, p.getEventOffset());
+		assertEquals(XmlPullParser.TEXT, p.next());
+		assertEquals("\u00e9", p.getText());
+		assertEquals(XmlPullParser.START_TAG, p.next());
+		assertEquals(26, p.getEventOffset());
+		p.next();
+		p.next();
+		assertEquals(XmlPullParser.END_TAG, p.next());
+		assertEquals(2, p.getLineNumber());
+		assertEquals(XmlPullParser.END_DOCUMENT, p.next());
+		assertEquals(2, buffer.position());
+		assertTrue(java.util.Arrays.equals(copy, bytes));
+
+		CharBuffer chars = CharBuffer.wrap("xx<c>text</c>");
+		chars.position(2);
+		p.setInput(chars);
+		assertEquals(XmlPullParser.START_TAG, p.next());
+		assertEquals(0, p.getEventOffset());
+		assertEquals(XmlPullParser.TEXT, p.next());
+		assertEquals("text", p.getText());
+		assertEquals(3, p.getEventOffset());
+		assertEquals(XmlPullParser.END_TAG, p.next());
+		assertEquals(XmlPullParser.END_DOCUMENT, p.next());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(8);
+		direct.put("<d>x</d>".getBytes("UTF-8"));
+		direct.flip();
+		p.setInput(direct, "UTF-8");
+		p.nextTag();
+		assertEquals("x", p.nextText());
+
+		p.setInput(new StringReader("<e/>"));
+		p.nextTag();
+		assertEquals("e", p.getName());
+	}
+
+	public void testFeedInput() throws Exception
+	{
+		byte[] doc = "<?xml version='1.0'?><a x='1>2'>\u00e9&amp;<![CDATA[c]]><b/></a>".getBytes("UTF-8");
+
+		KXmlParser p = new KXmlParser();
+		p.setFeedInput(null);
+		assertEquals(KXmlParser.INCOMPLETE, p.nextToken());
+
+		StringBuffer events = new StringBuffer();
+		int pos = 0;
+		while (true)
+		{
+			int type = p.nextToken();
+			if (type == KXmlParser.INCOMPLETE)
+			{
+				// one byte at a time splits names, entities and characters
+				if (pos < doc.length)
+					p.feed(doc, pos++, 1);
+				else
+					p.endOfInput();
+				continue;
+			}
+			if (type == XmlPullParser.END_DOCUMENT)
+				break;
+			events.append(XmlPullParser.TYPES[type]);
+			events.append(type == XmlPullParser.START_TAG || type == XmlPullParser.END_TAG ? p.getName() : p.getText());
+			events.append(' ');
+		}
+		assertEquals("START_TAGa TEXT\u00e9 ENTITY_REF& CDSECTc START_TAGb END_TAGb END_TAGa ", events.toString());
+
+		p.setFeedInput("UTF-8");
+		p.feed(doc, 21, 11);
+		assertEquals(XmlPullParser.START_TAG, p.next());
+		assertEquals("1>2", p.getAttributeValue(null, "x"));
+		p.feed(doc, 32, 2);
+		assertEquals(KXmlParser.INCOMPLETE, p.next());
+		p.feed(doc, 34, 20);
+		assertEquals(KXmlParser.INCOMPLETE, p.next());
+		p.feed(doc, 54, 2);
+		assertEquals(XmlPullParser.TEXT, p.next());
+		assertEquals("\u00e9&c", p.getText());
+	}
+
+	public void testTextChunks() throws Exception
+	{
+		StringBuffer text = new StringBuffer();
+		for (int i = 0; i < 100; i++)
+			text.append("line " + i + " &amp;\r\n");
+		String cdata = text.toString().replace("\r\n", "\n");
+		String expected = cdata.replace("&amp;", "&");
+		String doc = "<a>" + text + "<![CDATA[" + text + "]]></a>";
+
+		String chunkSize = "http://xmlpull.org/v1/doc/properties.html#text-chunk-size";
+		KXmlParser p = new KXmlParser();
+		try
+		{
+			p.setProperty(chunkSize, new Integer(8));
+			fail("chunk size below 16 accepted");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		p.setProperty(chunkSize, new Integer(16));
+		assertEquals(new Integer(16), p.getProperty(chunkSize));
+
+		p.setInput(new StringReader(doc));
+		p.nextTag();
+		StringBuffer got = new StringBuffer();
+		int chunks = 0;
+		while (p.next() == XmlPullParser.TEXT)
+		{
+			assertTrue(p.getText().length() <= 16);
+			got.append(p.getText());
+			chunks++;
+		}
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+		assertEquals(expected + cdata, got.toString());
+		assertTrue(chunks > 100);
+
+		p.setInput(new StringReader(doc));
+		p.nextTag();
+		got.setLength(0);
+		int type;
+		while ((type = p.nextToken()) == XmlPullParser.TEXT || type == XmlPullParser.ENTITY_REF)
+			got.append(p.getText());
+		assertEquals(expected, got.toString());
+		got.setLength(0);
+		do
+		{
+			assertTrue(p.getText().length() <= 16);
+			got.append(p.getText());
+		}
+		while (p.nextToken() == XmlPullParser.CDSECT);
+		assertEquals(cdata, got.toString());
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+
+		p.setInput(new StringReader(doc));
+		p.nextTag();
+		assertEquals(expected + cdata, p.nextText());
+
+		p.setProperty(chunkSize, null);
+		p.setInput(new StringReader(doc));
+		p.nextTag();
+		assertEquals(XmlPullParser.TEXT, p.next());
+		assertEquals(XmlPullParser.END_TAG, p.next());
+	}
+
+	public void testBinaryText() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		byte[] buf = new byte[8];
+
+		p.setInput(new StringReader("<a>TWFu\n TWE=</a><b><![CDATA[TQ==]]></b><c>00ff 7F</c>"));
+		p.nextTag();
+		p.next();
+		assertEquals(5, p.getTextBase64(buf, 1));
+		assertEquals("Man", new String(buf, 1, 3, "US-ASCII"));
+		assertEquals("Ma", new String(buf, 4, 2, "US-ASCII"));
+		p.nextTag();
+		p.nextTag();
+		assertEquals(XmlPullParser.CDSECT, p.nextToken());
+		assertEquals(1, p.getTextBase64(buf, 0));
+		assertEquals('M', buf[0]);
+		p.nextTag();
+		p.nextTag();
+		p.next();
+		assertEquals(3, p.getTextHex(buf, 0));
+		assertEquals(0, buf[0]);
+		assertEquals(-1, buf[1]);
+		assertEquals(127, buf[2]);
+
+		// groups split across chunks
+		StringBuffer doc = new StringBuffer("<a>");
+		for (int i = 0; i < 100; i++)
+			doc.append(i % 7 == 0 ? "TWFu\r\n" : "TWFu");
+		doc.append("TWE=</a>");
+		p.setProperty("http://xmlpull.org/v1/doc/properties.html#text-chunk-size", new Integer(17));
+		p.setInput(new StringReader(doc.toString()));
+		p.nextTag();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(302, p.nextBase64(out));
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+		String decoded = new String(out.toByteArray(), "US-ASCII");
+		assertTrue(decoded.startsWith("ManMan"));
+		assertTrue(decoded.endsWith("ManMa"));
+
+		String[] illegal = { "<a>TQ=</a>", "<a>T=Q=</a>", "<a>TQ==TQ==</a>", "<a>T\u00e9Q=</a>" };
+		for (int i = 0; i < illegal.length; i++)
+		{
+			p.setInput(new StringReader(illegal[i]));
+			p.nextTag();
+			try
+			{
+				p.nextBase64(new ByteArrayOutputStream());
+				fail(illegal[i]);
+			}
+			catch (XmlPullParserException e)
+			{
+			}
+		}
+		p.setInput(new StringReader("<a>abc</a>"));
+		p.nextTag();
+		try
+		{
+			p.nextHex(new ByteArrayOutputStream());
+			fail("odd number of hex digits accepted");
+		}
+		catch (XmlPullParserException e)
+		{
+		}
+	}
+
+	public void testTypedValues() throws Exception
+	{
+		KXmlParser p = new KXmlParser();
+		p.setFeature("http://xmlpull.org/v1/doc/features.html#lazy-attributes", true);
+		p.setInput(new StringReader(
+			"<a i=' -2147483648' l='&#57;223372036854775807' d='2.5e-3' x='1x'>"
+				+ "<i> 42\n</i><l>-7</l><d>1e400</d><e/><s>1<!-- c -->2</s></a>"));
+
+		p.nextTag();
+		assertEquals(Integer.MIN_VALUE, p.getAttributeInt(0));
+		assertEquals(Long.MAX_VALUE, p.getAttributeLong(1));
+		assertEquals(0.0025, p.getAttributeDouble(2), 0);
+		assertEquals(-2147483648L, p.getAttributeLong(null, "i", 0));
+		assertEquals(5, p.getAttributeInt("", "missing", 5));
+		assertEquals(1.5, p.getAttributeDouble(null, "missing", 1.5), 0);
+		try
+		{
+			p.getAttributeInt(null, "l", 0);
+			fail("int overflow accepted");
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		try
+		{
+			p.getAttributeInt(3);
+			fail("1x accepted");
+		}
+		catch (NumberFormatException e)
+		{
+		}
+
+		p.nextTag();
+		assertEquals(XmlPullParser.TEXT, p.next());
+		assertEquals(42, p.getTextAsInt());
+		assertEquals(42.0, p.getTextAsDouble(), 0);
+		p.nextTag();
+		p.nextTag();
+		assertEquals(-7L, p.nextLong());
+		assertEquals(XmlPullParser.END_TAG, p.getEventType());
+		p.nextTag();
+		assertEquals(Double.POSITIVE_INFINITY, p.nextDouble(), 0);
+		p.nextTag();
+		try
+		{
+			p.nextInt();
+			fail("empty element accepted");
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		p.nextTag();
+		assertEquals(12, p.nextInt());
+		assertEquals("s", p.getName());
+	}
+
+	public void testAttributeIndex() throws Exception
+	{
+		StringBuffer doc = new StringBuffer("<a xmlns:p='urn:p' xmlns:q='urn:q'");
+		for (int i = 0; i < 40; i++)
+			doc.append(" a" + i + "='" + i + "'");
+		doc.append(" p:a7='p' q:a7='q'/>");
+
+		KXmlParser p = new KXmlParser();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader(doc.toString()));
+		p.nextTag();
+		assertEquals(42, p.getAttributeCount());
+		for (int i = 0; i < 40; i++)
+		{
+			assertEquals(i, p.getAttributeIndex("", "a" + i));
+			assertEquals(String.valueOf(i), p.getAttributeValue("", "a" + i));
+		}
+		assertEquals(7, p.getAttributeIndex("", "a7"));
+		assertEquals(40, p.getAttributeIndex("urn:p", "a7"));
+		assertEquals(41, p.getAttributeIndex(null, "a7"));
+		assertEquals("q", p.getAttributeValue(null, "a7"));
+		assertEquals(-1, p.getAttributeIndex("urn:x", "a7"));
+		assertEquals(-1, p.getAttributeIndex(null, "a40"));
+
+		p.setInput(new StringReader(doc.toString()));
+		Document d = new Document();
+		d.parse(p);
+		Element e = d.getRootElement();
+		assertEquals("39", e.getAttributeValue("", "a39"));
+		assertEquals(7, e.getAttributeIndex(null, "a7"));
+		assertEquals(40, e.getAttributeIndex("urn:p", "a7"));
+		e.setAttribute("", "a50", "50");
+		assertEquals(42, e.getAttributeIndex(null, "a50"));
+		e.setAttribute("", "a3", null);
+		assertEquals(-1, e.getAttributeIndex(null, "a3"));
+		assertEquals(41, e.getAttributeIndex(null, "a50"));
+		assertEquals("9", e.getAttributeValue(null, "a9"));
+	}
+
+	public void testDuplicateAttributes() throws Exception
+	{
+		StringBuffer many = new StringBuffer("<a");
+		for (int i = 0; i < 30; i++)
+			many.append(" a" + i + "='" + i + "'");
+
+		String[] illegal = {
+			"<a x='1' y='2' x='3'/>",
+			"<a xmlns:p='urn:p' xmlns:p='urn:q'/>",
+			"<a xmlns:p='urn:p' xmlns:q='urn:p' p:x='1' q:x='2'/>",
+			many + " a17='x'/>" };
+
+		for (int i = 0; i < illegal.length; i++)
+		{
+			KXmlParser p = new KXmlParser();
+			p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, i == 2);
+			p.setInput(new StringReader(illegal[i]));
+			try
+			{
+				p.nextTag();
+				fail(illegal[i]);
+			}
+			catch (XmlPullParserException e)
+			{
+				assertTrue(e.getMessage().startsWith("Duplicate Attribute"));
+			}
+
+			p.setFeature("http://xmlpull.org/v1/doc/features.html#relaxed", true);
+			p.setInput(new StringReader(illegal[i]));
+			assertEquals(XmlPullParser.START_TAG, p.nextTag());
+		}
+
+		KXmlParser p = new KXmlParser();
+		p.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		p.setInput(new StringReader(many + " xmlns:p='urn:p' p:a17='x'/>"));
+		p.nextTag();
+		assertEquals(31, p.getAttributeCount());
+		assertEquals(30, p.getAttributeIndex("urn:p", "a17"));
+		assertEquals(17, p.getAttributeIndex("", "a17"));
+	}
+
+	public void testOffsetIndex() throws Exception
+	{
+		StringBuffer doc = new StringBuffer("<?xml version='1.0'?>\n<feed>");
+		for (int i = 0; i < 50; i++)
+			doc.append("<entry id='" + i + "'><title>\u00e9 " + i + "</title></entry>\n");
+		doc.append("</feed>");
+		byte[] bytes = doc.toString().getBytes("UTF-8");
+
+		KXmlParser p = new KXmlParser();
+		p.setInput(new ByteArrayInputStream(bytes), null);
+		OffsetIndex index = OffsetIndex.build(p, 2);
+		assertEquals(51, index.size());
+		assertEquals("/feed", index.getPath(0));
+		assertEquals(22, index.getOffset(0));
+		assertEquals(-1, index.indexOf("/feed/entry/title", 0));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.write(out);
+		assertTrue(out.size() < 51 * 3 + 40);
+		index = OffsetIndex.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(51, index.size());
+
+		int i = index.indexOf("/feed/entry", 31);
+		assertEquals(31, i);
+		long offset = index.getOffset(i);
+		OffsetIndex.restart(p, new ByteArrayInputStream(bytes), offset, "UTF-8");
+		assertEquals(XmlPullParser.START_TAG, p.next());
+		assertEquals("entry", p.getName());
+		assertEquals("30", p.getAttributeValue(null, "id"));
+		assertEquals(offset, p.getEventOffset());
+		p.nextTag();
+		assertEquals("\u00e9 30", p.nextText());
+		p.nextTag();
+		p.nextTag();
+		assertEquals("31", p.getAttributeValue(null, "id"));
+		assertEquals(index.getOffset(i + 1), p.getEventOffset());
+	}
+
+	public void testParallel() throws Exception
+	{
+		// chunks are at least 64 KB, so this makes about 15 chunks, more
+		// than threads, and workers parse several chunks each
+		final int records = 10000;
+		StringBuffer doc = new StringBuffer(
+			"<?xml version='1.0'?>\n<!DOCTYPE feed>\n"
+				+ "<feed xmlns:f='urn:f'><!-- <entry> --><list>\n");
+		for (int i = 0; i < records; i++)
+			doc.append("<f:entry id='" + i + "' x='a>b'><![CDATA[</f:entry>]]>"
+				+ "<t>\u00e9&e;" + i + "</t><e/><?p </f:entry>?></f:entry>\n");
+		doc.append("</list></feed>\n");
+		final byte[] bytes = doc.toString().getBytes("UTF-8");
+
+		final Vector offsets = new Vector();
+		KXmlParser p = new KXmlParser();
+		p.setInput(new ByteArrayInputStream(bytes), null);
+		p.defineEntityReplacementText("e", "ent");
+		while (p.next() != XmlPullParser.END_DOCUMENT)
+			if (p.getEventType() == XmlPullParser.START_TAG && p.getDepth() == 3)
+				offsets.addElement(new Long(p.getEventOffset()));
+
+		final Vector handled = new Vector();
+		ParallelParser.RecordHandler handler = new ParallelParser.RecordHandler()
+		{
+			public Object parse(XmlPullParser parser)
+				throws IOException, XmlPullParserException
+			{
+				assertEquals("urn:f", parser.getNamespace());
+				assertEquals(1, parser.getNamespaceCount(0));
+				assertEquals(1, parser.getNamespaceCount(parser.getDepth()));
+				int id = Integer.parseInt(parser.getAttributeValue(null, "id"));
+				assertEquals(((Long) offsets.elementAt(id)).longValue(),
+					((KXmlParser) parser).getEventOffset());
+				parser.next();
+				parser.nextTag();
+				assertEquals("\u00e9ent" + id, parser.nextText());
+				return new Integer(id);
+			}
+
+			public void handle(Object record)
+			{
+				handled.addElement(record);
+			}
+		};
+
+		ParallelParser parallel = new ParallelParser(4, true);
+		parallel.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parallel.defineEntityReplacementText("e", "ent");
+		assertEquals(records, parallel.parse(ByteBuffer.wrap(bytes), null, 3, handler));
+		for (int i = 0; i < records; i++)
+			assertEquals(i, ((Integer) handled.elementAt(i)).intValue());
+
+		File file = File.createTempFile("kxml", ".xml");
+		FileInputStream in = null;
+		try
+		{
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(bytes);
+			out.close();
+
+			in = new FileInputStream(file);
+			handled.removeAllElements();
+			parallel = new ParallelParser(3, false);
+			parallel.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+			parallel.defineEntityReplacementText("e", "ent");
+			assertEquals(records, parallel.parse(in.getChannel(), "UTF-8", 3, handler));
+			boolean[] seen = new boolean[records];
+			for (int i = 0; i < records; i++)
+				seen[((Integer) handled.elementAt(i)).intValue()] = true;
+			for (int i = 0; i < records; i++)
+				assertTrue(seen[i]);
+		}
+		finally
+		{
+			if (in != null)
+				in.close();
+			file.delete();
+		}
+
+		try
+		{
+			parallel.parse(ByteBuffer.wrap(
+				"<a><b/><b/></a><c/>".getBytes("UTF-8")), null, 2, handler);
+			fail();
+		}
+		catch (XmlPullParserException e)
+		{
+		}
+	}
+
+	/** Returns the text of the root element of doc, parsed from a stream
+	    that hands out one byte per read() if trickle is set */
+
+	static String decodeText(byte[] doc, String enc, boolean trickle, int bufferSize)
+		throws IOException, XmlPullParserException
+	{
+		InputStream in = new ByteArrayInputStream(doc);
+		if (trickle)
+			in = new TrickleInputStream(in);
+		KXmlParser p = new KXmlParser(bufferSize, bufferSize);
+		p.setInput(in, enc);
+		p.nextTag();
+		return p.nextText();
+	}
+
+	static class TrickleInputStream extends FilterInputStream
+	{
+		TrickleInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException
+		{
+			return super.read(buf, off, Math.min(len, 1));
+		}
+	}
+
+	/** Returns line and column after each token */
+
+	static String positions(XmlPullParser p)
+		throws IOException, XmlPullParserException
+	{
+		StringBuffer buf = new StringBuffer();
+		int type;
+		do
+		{
+			type = p.nextToken();
+			buf.append(p.getLineNumber() + ":" + p.getColumnNumber() + " ");
+		}
+		while (type != XmlPullParser.END_DOCUMENT);
+		return buf.toString();
+	}
+
+	/** Returns the tokens with their names, text, attributes and positions */
+
+	static String events(XmlPullParser p)
+		throws IOException, XmlPullParserException
+	{
+		StringBuffer buf = new StringBuffer();
+		int type;
+		do
+		{
+			type = p.nextToken();
+			buf.append(XmlPullParser.TYPES[type] + " ");
+			if (type == XmlPullParser.START_TAG || type == XmlPullParser.END_TAG)
+				buf.append(p.getName() + " ");
+			else if (type != XmlPullParser.END_DOCUMENT)
+				buf.append(p.getText() + " ");
+			for (int i = 0; i < p.getAttributeCount(); i++)
+				buf.append(p.getAttributeName(i) + "=" + p.getAttributeValue(i) + " ");
+			buf.append(p.getLineNumber() + ":" + p.getColumnNumber() + "\n");
+		}
+		while (type != XmlPullParser.END_DOCUMENT);
+		return buf.toString();
+	}
+
+	/** Records the largest number of chars asked for by read() */
+
+	static class RecordingReader extends FilterReader
+	{
+		int maxLen;
+
+		RecordingReader(Reader in)
+		{
+			super(in);
+		}
+
+		public int read(char[] buf, int off, int len) throws IOException
+		{
+			maxLen = Math.max(maxLen, len);
+			return super.read(buf, off, len);
+		}
+	}
+
+	/** Records the largest number of bytes asked for by read() */
+
+	static class RecordingInputStream extends FilterInputStream
+	{
+		int maxLen;
+
+		RecordingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException
+		{
+			maxLen = Math.max(maxLen, len);
+			return super.read(buf, off, len);
+		}
+	}
+}
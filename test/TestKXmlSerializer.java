@@ -0,0 +1,179 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlNioSerializer;
+import org.kxml2.io.KXmlSerializer;
+import org.kxml2.io.XmlName;
+
+public class TestKXmlSerializer extends TestCase 
+{
+	public void testOutputBuffer() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		KXmlSerializer s = new KXmlSerializer(16);
+		s.setOutput(out);
+		s.startTag(null, "a");
+		s.attribute(null, "x", "1");
+		s.text("short");
+		assertEquals("", out.toString());
+
+		StringBuffer text = new StringBuffer();
+		for (int i = 0; i < 10; i++)
+			text.append("0123456789");
+		s.text(text.toString());
+		s.startTag(null, "b");
+		s.endTag(null, "b");
+		s.flush();
+		assertEquals("<a x=\"1\">short" + text + "<b />", out.toString());
+
+		s.endDocument();
+		assertEquals("<a x=\"1\">short" + text + "<b /></a>", out.toString());
+	}
+
+	public void testEscaping() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		KXmlSerializer s = new KXmlSerializer(4);
+		s.setOutput(out);
+		s.startTag(null, "a");
+		s.attribute(null, "x", "<\"'\t&\u00e9>");
+		s.attribute(null, "y", "'\n");
+		s.text("a<b>&c@d\u0001\n\u00e9\u20ac");
+		char[] text = "xx1 & 2\u00ffyy".toCharArray();
+		s.text(text, 2, 6);
+		s.endDocument();
+		assertEquals("<a x='&lt;\"&apos;&#9;&amp;&#233;&gt;' y=\"'&#10;\">"
+			+ "a&lt;b&gt;&amp;c&#64;d&#1;\n&#233;&#8364;1 &amp; 2&#255;</a>",
+			out.toString());
+	}
+
+	public void testByteOutput() throws Exception
+	{
+		String text = "a\u00e9\u20ac\ud83d\ude00b";
+		String doc = "<a>" + text + "<!--\ud800x--></a>";
+
+		for (int size = 1; size < 8; size++)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			KXmlSerializer s = new KXmlSerializer(size);
+			s.setOutput(out, "UTF-8");
+			s.startTag(null, "a");
+			s.text(text);
+			s.comment("\ud800x");
+			s.endDocument();
+			assertEquals(doc.replace('\ud800', '?'), new String(out.toByteArray(), "UTF-8"));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		KXmlSerializer s = new KXmlSerializer();
+		s.setOutput(out, "ISO-8859-1");
+		s.startTag(null, "a");
+		s.comment(text);
+		s.endDocument();
+		assertEquals("<a><!--a\u00e9??b--></a>", new String(out.toByteArray(), "ISO-8859-1"));
+
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		KXmlNioSerializer ns = new KXmlNioSerializer();
+		ns.setOutput(buffer, "UTF-8");
+		ns.startTag(null, "a");
+		ns.text("\u00e9");
+		ns.endDocument();
+		assertEquals(9, buffer.position());
+		assertEquals("<a>\u00e9</a>", new String(buffer.array(), 0, 9, "UTF-8"));
+
+		ns.setOutput(ByteBuffer.allocate(4), "UTF-8");
+		ns.startTag(null, "abcd");
+		try
+		{
+			ns.endDocument();
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+
+		out.reset();
+		ns.setOutput(Channels.newChannel(out), "UTF-16");
+		ns.startTag(null, "a");
+		ns.endTag(null, "a");
+		ns.endDocument();
+		assertEquals("<a />", new String(out.toByteArray(), "UTF-16"));
+	}
+
+	public void testNameTokens() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		KXmlSerializer s = new KXmlSerializer();
+		s.setOutput(out);
+		XmlName a = s.name("urn:a", "a");
+		XmlName x = s.name("urn:a", "x");
+		XmlName b = s.name(null, "b");
+
+		s.setPrefix("p", "urn:a");
+		s.startTag(a);
+		s.attribute(x, "1");
+		s.setPrefix("q", "urn:a");
+		s.startTag(a);
+		s.attribute(x, "2");
+		s.startTag(b);
+		s.endTag(null, "b");
+		s.endTag(a);
+		s.startTag(b);
+		s.endTag(b);
+		s.endTag("urn:a", "a");
+		s.endDocument();
+		assertEquals("<p:a p:x=\"1\" xmlns:p=\"urn:a\"><q:a q:x=\"2\" xmlns:q=\"urn:a\">"
+			+ "<b /></q:a><b /></p:a>", out.toString());
+
+		s.setOutput(new StringWriter());
+		s.startTag(a);
+		try
+		{
+			s.endTag(b);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		try
+		{
+			new KXmlSerializer().startTag(a);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	public void testManyNamespaces() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		KXmlSerializer s = new KXmlSerializer();
+		s.setOutput(out);
+		s.setPrefix("n0", "urn:n0");
+		for (int i = 0; i < 30; i++)
+			s.setPrefix("p" + i, "urn:" + i);
+		s.startTag("urn:7", "a");
+		assertEquals("p29", s.getPrefix("urn:29", false));
+		s.setPrefix("p7", "urn:other");
+		s.startTag("urn:7", "b");
+		assertEquals("n1", s.getPrefix("urn:7", false));
+		s.startTag("urn:x", "c");
+		s.endTag("urn:x", "c");
+		s.endTag("urn:7", "b");
+		assertEquals("p7", s.getPrefix("urn:7", false));
+		s.startTag("urn:y", "d");
+		s.endTag("urn:y", "d");
+		s.endDocument();
+
+		String doc = out.toString();
+		assertTrue(doc.indexOf("<n1:b xmlns:p7=\"urn:other\" xmlns:n1=\"urn:7\">") != -1);
+		assertTrue(doc.indexOf("<n2:c xmlns:n2=\"urn:x\" /></n1:b>") != -1);
+		assertTrue(doc.endsWith("<n3:d xmlns:n3=\"urn:y\" /></p7:a>"));
+	}
+}